@@ -0,0 +1,690 @@
+/*
+ * Copyright 2011 Jrme Wax <jerome.wax@lo2k.net>
+ * http://www.lo2k.net
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.lo2k.patcher;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * compact tagged binary codec. Each value starts with a one byte tag, class
+ * and field names are written once and then referenced by index.
+ * 
+ * Objects are written field by field (static and transient fields excluded)
+ * and need a constructor without argument, like with yaml. A field hidden by
+ * a subclass field of the same name is keyed by its declaring class.
+ * Collections and maps are rebuilt from their elements, with the comparator of
+ * sorted ones, other JDK classes fall back to java serialization, like enum
+ * sets and maps whose enum type can't be found from their elements. Cyclic
+ * references are not supported.
+ * 
+ * @author wax
+ * 
+ */
+public class SVSBinaryCodec implements SVSCodec {
+
+	/**
+	 * 
+	 */
+	private static final long serialVersionUID = -4398312877402719650L;
+
+	private static final int NULL = 0;
+	private static final int STRING = 1;
+	private static final int INTEGER = 2;
+	private static final int LONG = 3;
+	private static final int DOUBLE = 4;
+	private static final int FLOAT = 5;
+	private static final int SHORT = 6;
+	private static final int BYTE = 7;
+	private static final int CHARACTER = 8;
+	private static final int BOOLEAN = 9;
+	private static final int DATE = 10;
+	private static final int ENUM = 11;
+	private static final int BYTES = 12;
+	private static final int ARRAY = 13;
+	private static final int COLLECTION = 14;
+	private static final int MAP = 15;
+	private static final int OBJECT = 16;
+	private static final int SERIALIZED = 17;
+	private static final int ENUM_SET = 18;
+	private static final int ENUM_MAP = 19;
+	private static final int SORTED_COLLECTION = 20;
+	private static final int SORTED_MAP = 21;
+
+	private static final Map<String, Class<?>> PRIMITIVES = new HashMap<String, Class<?>>();
+	static {
+		PRIMITIVES.put("int", int.class);
+		PRIMITIVES.put("long", long.class);
+		PRIMITIVES.put("double", double.class);
+		PRIMITIVES.put("float", float.class);
+		PRIMITIVES.put("short", short.class);
+		PRIMITIVES.put("byte", byte.class);
+		PRIMITIVES.put("char", char.class);
+		PRIMITIVES.put("boolean", boolean.class);
+	}
+
+	private static final ConcurrentHashMap<Class<?>, Field[]> FIELDS = new ConcurrentHashMap<Class<?>, Field[]>();
+
+	private static final ConcurrentHashMap<Class<?>, String[]> FIELD_KEYS = new ConcurrentHashMap<Class<?>, String[]>();
+
+	private static final SVSJavaCodec JAVA_CODEC = new SVSJavaCodec();
+
+	@Override
+	public String encode(Object object) {
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			new Writer(new DataOutputStream(out)).writeValue(object);
+			return out.toString(SVSJavaCodec.CHARSET);
+		} catch (IOException e) {
+			throw new SVSCodecException("cannot serialize " + object, e);
+		} catch (IllegalAccessException e) {
+			throw new SVSCodecException("cannot serialize " + object, e);
+		}
+	}
+
+	@Override
+	public Object decode(String string) {
+		try {
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+					string.getBytes(SVSJavaCodec.CHARSET)));
+			return new Reader(in).readValue();
+		} catch (SVSCodecException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new SVSCodecException("cannot deserialize", e);
+		}
+	}
+
+	/**
+	 * get serialized fields, superclass fields first, sorted by name
+	 * 
+	 * @param cls
+	 * @return
+	 */
+	static Field[] getFields(Class<?> cls) {
+		Field[] fields = FIELDS.get(cls);
+		if (fields == null) {
+			List<Field> list = new ArrayList<Field>();
+			if (cls.getSuperclass() != null) {
+				list.addAll(Arrays.asList(getFields(cls.getSuperclass())));
+			}
+
+			List<Field> declared = new ArrayList<Field>();
+			for (Field field : cls.getDeclaredFields()) {
+				int modifiers = field.getModifiers();
+				if (Modifier.isStatic(modifiers)
+						|| Modifier.isTransient(modifiers)
+						|| field.isSynthetic()) {
+					continue;
+				}
+				field.setAccessible(true);
+				declared.add(field);
+			}
+			Collections.sort(declared, new Comparator<Field>() {
+				@Override
+				public int compare(Field f1, Field f2) {
+					return f1.getName().compareTo(f2.getName());
+				}
+			});
+			list.addAll(declared);
+
+			fields = list.toArray(new Field[list.size()]);
+			FIELDS.put(cls, fields);
+		}
+		return fields;
+	}
+
+	/**
+	 * get keys of serialized fields, in order of {@link #getFields(Class)}. Key
+	 * is field name, qualified by declaring class when a subclass field hides
+	 * it.
+	 * 
+	 * @param cls
+	 * @return
+	 */
+	static String[] getFieldKeys(Class<?> cls) {
+		String[] keys = FIELD_KEYS.get(cls);
+		if (keys == null) {
+			Field[] fields = getFields(cls);
+			keys = new String[fields.length];
+			Set<String> names = new HashSet<String>();
+			// subclass fields come last and keep plain names
+			for (int i = fields.length - 1; i >= 0; i--) {
+				String name = fields[i].getName();
+				if (names.add(name)) {
+					keys[i] = name;
+				} else {
+					keys[i] = fields[i].getDeclaringClass().getName() + "."
+							+ name;
+				}
+			}
+			FIELD_KEYS.put(cls, keys);
+		}
+		return keys;
+	}
+
+	/**
+	 * @param set
+	 * @return enum type of set, null if it has no element and its complement
+	 *         neither
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	static Class<?> getEnumType(EnumSet<?> set) {
+		EnumSet<?> elements = set.isEmpty() ? EnumSet
+				.complementOf((EnumSet) set) : set;
+		if (elements.isEmpty()) {
+			return null;
+		}
+		return elements.iterator().next().getDeclaringClass();
+	}
+
+	static boolean isJdkClass(Class<?> cls) {
+		String name = cls.getName();
+		return name.startsWith("java.") || name.startsWith("javax.")
+				|| name.startsWith("sun.") || name.startsWith("jdk.");
+	}
+
+	private static class Writer {
+
+		private final DataOutputStream out;
+
+		private final HashMap<String, Integer> names = new HashMap<String, Integer>();
+
+		// objects being written, to detect cycles
+		private final IdentityHashMap<Object, Object> path = new IdentityHashMap<Object, Object>();
+
+		Writer(DataOutputStream out) {
+			this.out = out;
+		}
+
+		void writeValue(Object value) throws IOException,
+				IllegalAccessException {
+			if (value == null) {
+				out.writeByte(NULL);
+			} else if (value instanceof String) {
+				out.writeByte(STRING);
+				writeString((String) value);
+			} else if (value instanceof Integer) {
+				out.writeByte(INTEGER);
+				writeSignedVarLong(((Integer) value).intValue());
+			} else if (value instanceof Long) {
+				out.writeByte(LONG);
+				writeSignedVarLong(((Long) value).longValue());
+			} else if (value instanceof Double) {
+				out.writeByte(DOUBLE);
+				out.writeDouble(((Double) value).doubleValue());
+			} else if (value instanceof Float) {
+				out.writeByte(FLOAT);
+				out.writeFloat(((Float) value).floatValue());
+			} else if (value instanceof Short) {
+				out.writeByte(SHORT);
+				out.writeShort(((Short) value).shortValue());
+			} else if (value instanceof Byte) {
+				out.writeByte(BYTE);
+				out.writeByte(((Byte) value).byteValue());
+			} else if (value instanceof Character) {
+				out.writeByte(CHARACTER);
+				out.writeChar(((Character) value).charValue());
+			} else if (value instanceof Boolean) {
+				out.writeByte(BOOLEAN);
+				out.writeBoolean(((Boolean) value).booleanValue());
+			} else if (value.getClass() == Date.class) {
+				out.writeByte(DATE);
+				writeSignedVarLong(((Date) value).getTime());
+			} else if (value instanceof Enum<?>) {
+				out.writeByte(ENUM);
+				writeName(((Enum<?>) value).getDeclaringClass().getName());
+				writeName(((Enum<?>) value).name());
+			} else if (value instanceof byte[]) {
+				byte[] bytes = (byte[]) value;
+				out.writeByte(BYTES);
+				writeVarLong(bytes.length);
+				out.write(bytes);
+			} else if (value.getClass().isArray()) {
+				enter(value);
+				int length = Array.getLength(value);
+				out.writeByte(ARRAY);
+				writeName(value.getClass().getComponentType().getName());
+				writeVarLong(length);
+				for (int i = 0; i < length; i++) {
+					writeValue(Array.get(value, i));
+				}
+				leave(value);
+			} else if (value instanceof EnumSet<?>
+					&& getEnumType((EnumSet<?>) value) != null) {
+				EnumSet<?> set = (EnumSet<?>) value;
+				out.writeByte(ENUM_SET);
+				writeName(getEnumType(set).getName());
+				writeVarLong(set.size());
+				for (Enum<?> element : set) {
+					writeName(element.name());
+				}
+			} else if (value instanceof EnumMap<?, ?>
+					&& !((EnumMap<?, ?>) value).isEmpty()) {
+				enter(value);
+				EnumMap<?, ?> map = (EnumMap<?, ?>) value;
+				out.writeByte(ENUM_MAP);
+				writeName(map.keySet().iterator().next().getDeclaringClass()
+						.getName());
+				writeVarLong(map.size());
+				for (Map.Entry<? extends Enum<?>, ?> entry : map.entrySet()) {
+					writeName(entry.getKey().name());
+					writeValue(entry.getValue());
+				}
+				leave(value);
+			} else if (value instanceof EnumSet<?>
+					|| value instanceof EnumMap<?, ?>) {
+				writeSerialized(value);
+			} else if (value instanceof SortedSet<?>
+					&& ((SortedSet<?>) value).comparator() != null) {
+				enter(value);
+				SortedSet<?> set = (SortedSet<?>) value;
+				out.writeByte(SORTED_COLLECTION);
+				writeName(value.getClass().getName());
+				writeValue(set.comparator());
+				writeVarLong(set.size());
+				for (Object element : set) {
+					writeValue(element);
+				}
+				leave(value);
+			} else if (value instanceof SortedMap<?, ?>
+					&& ((SortedMap<?, ?>) value).comparator() != null) {
+				enter(value);
+				SortedMap<?, ?> map = (SortedMap<?, ?>) value;
+				out.writeByte(SORTED_MAP);
+				writeName(value.getClass().getName());
+				writeValue(map.comparator());
+				writeVarLong(map.size());
+				for (Map.Entry<?, ?> entry : map.entrySet()) {
+					writeValue(entry.getKey());
+					writeValue(entry.getValue());
+				}
+				leave(value);
+			} else if (value instanceof Collection<?>) {
+				enter(value);
+				Collection<?> collection = (Collection<?>) value;
+				out.writeByte(COLLECTION);
+				writeName(value.getClass().getName());
+				writeVarLong(collection.size());
+				for (Object element : collection) {
+					writeValue(element);
+				}
+				leave(value);
+			} else if (value instanceof Map<?, ?>) {
+				enter(value);
+				Map<?, ?> map = (Map<?, ?>) value;
+				out.writeByte(MAP);
+				writeName(value.getClass().getName());
+				writeVarLong(map.size());
+				for (Map.Entry<?, ?> entry : map.entrySet()) {
+					writeValue(entry.getKey());
+					writeValue(entry.getValue());
+				}
+				leave(value);
+			} else if (isJdkClass(value.getClass())) {
+				writeSerialized(value);
+			} else {
+				enter(value);
+				Field[] fields = getFields(value.getClass());
+				String[] keys = getFieldKeys(value.getClass());
+				out.writeByte(OBJECT);
+				writeName(value.getClass().getName());
+				writeVarLong(fields.length);
+				for (int i = 0; i < fields.length; i++) {
+					writeName(keys[i]);
+					writeValue(fields[i].get(value));
+				}
+				leave(value);
+			}
+		}
+
+		private void writeSerialized(Object value) throws IOException {
+			if (!(value instanceof Serializable)) {
+				throw new SVSCodecException("cannot serialize "
+						+ value.getClass().getName());
+			}
+			byte[] bytes = JAVA_CODEC.encode(value).getBytes(
+					SVSJavaCodec.CHARSET);
+			out.writeByte(SERIALIZED);
+			writeVarLong(bytes.length);
+			out.write(bytes);
+		}
+
+		private void enter(Object value) {
+			if (path.put(value, value) != null) {
+				throw new SVSCodecException("cyclic reference on "
+						+ value.getClass().getName());
+			}
+		}
+
+		private void leave(Object value) {
+			path.remove(value);
+		}
+
+		/**
+		 * write a class or field name, only index if already written
+		 */
+		private void writeName(String name) throws IOException {
+			Integer index = names.get(name);
+			if (index != null) {
+				writeVarLong(index.intValue() + 1);
+			} else {
+				writeVarLong(0);
+				writeString(name);
+				names.put(name, Integer.valueOf(names.size()));
+			}
+		}
+
+		/**
+		 * write a string in CESU-8, lone surrogates are kept
+		 */
+		private void writeString(String string) throws IOException {
+			byte[] bytes = SVSByteDeltaEngine.encode(string);
+			writeVarLong(bytes.length);
+			out.write(bytes);
+		}
+
+		private void writeSignedVarLong(long value) throws IOException {
+			// zigzag, small negative values stay short
+			writeVarLong((value << 1) ^ (value >> 63));
+		}
+
+		private void writeVarLong(long value) throws IOException {
+			long v = value;
+			while ((v & ~0x7FL) != 0) {
+				out.writeByte((int) ((v & 0x7F) | 0x80));
+				v >>>= 7;
+			}
+			out.writeByte((int) v);
+		}
+	}
+
+	private static class Reader {
+
+		private final DataInputStream in;
+
+		private final List<String> names = new ArrayList<String>();
+
+		Reader(DataInputStream in) {
+			this.in = in;
+		}
+
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		Object readValue() throws Exception {
+			int tag = in.readUnsignedByte();
+			switch (tag) {
+			case NULL:
+				return null;
+			case STRING:
+				return readString();
+			case INTEGER:
+				return Integer.valueOf((int) readSignedVarLong());
+			case LONG:
+				return Long.valueOf(readSignedVarLong());
+			case DOUBLE:
+				return Double.valueOf(in.readDouble());
+			case FLOAT:
+				return Float.valueOf(in.readFloat());
+			case SHORT:
+				return Short.valueOf(in.readShort());
+			case BYTE:
+				return Byte.valueOf(in.readByte());
+			case CHARACTER:
+				return Character.valueOf(in.readChar());
+			case BOOLEAN:
+				return Boolean.valueOf(in.readBoolean());
+			case DATE:
+				return new Date(readSignedVarLong());
+			case ENUM: {
+				Class enumClass = getClass(readName());
+				return Enum.valueOf(enumClass, readName());
+			}
+			case BYTES: {
+				byte[] bytes = new byte[(int) readVarLong()];
+				in.readFully(bytes);
+				return bytes;
+			}
+			case ARRAY: {
+				Class<?> componentType = getClass(readName());
+				int length = (int) readVarLong();
+				Object array = Array.newInstance(componentType, length);
+				for (int i = 0; i < length; i++) {
+					Array.set(array, i, readValue());
+				}
+				return array;
+			}
+			case COLLECTION: {
+				Collection<Object> collection = newCollection(getClass(readName()));
+				int size = (int) readVarLong();
+				for (int i = 0; i < size; i++) {
+					collection.add(readValue());
+				}
+				return collection;
+			}
+			case MAP: {
+				Map<Object, Object> map = newMap(getClass(readName()));
+				int size = (int) readVarLong();
+				for (int i = 0; i < size; i++) {
+					Object key = readValue();
+					map.put(key, readValue());
+				}
+				return map;
+			}
+			case ENUM_SET: {
+				Class enumClass = getClass(readName());
+				EnumSet set = EnumSet.noneOf(enumClass);
+				int size = (int) readVarLong();
+				for (int i = 0; i < size; i++) {
+					set.add(Enum.valueOf(enumClass, readName()));
+				}
+				return set;
+			}
+			case ENUM_MAP: {
+				Class enumClass = getClass(readName());
+				EnumMap map = new EnumMap(enumClass);
+				int size = (int) readVarLong();
+				for (int i = 0; i < size; i++) {
+					Enum key = Enum.valueOf(enumClass, readName());
+					map.put(key, readValue());
+				}
+				return map;
+			}
+			case SORTED_COLLECTION: {
+				Class<?> cls = getClass(readName());
+				Collection<Object> collection = (Collection<Object>) newSorted(
+						cls, (Comparator<Object>) readValue());
+				int size = (int) readVarLong();
+				for (int i = 0; i < size; i++) {
+					collection.add(readValue());
+				}
+				return collection;
+			}
+			case SORTED_MAP: {
+				Class<?> cls = getClass(readName());
+				Map<Object, Object> map = (Map<Object, Object>) newSorted(cls,
+						(Comparator<Object>) readValue());
+				int size = (int) readVarLong();
+				for (int i = 0; i < size; i++) {
+					Object key = readValue();
+					map.put(key, readValue());
+				}
+				return map;
+			}
+			case SERIALIZED: {
+				byte[] bytes = new byte[(int) readVarLong()];
+				in.readFully(bytes);
+				return JAVA_CODEC.decode(new String(bytes, SVSJavaCodec.CHARSET));
+			}
+			case OBJECT: {
+				Class<?> cls = getClass(readName());
+				Object object = newInstance(cls);
+
+				Field[] declared = getFields(cls);
+				String[] keys = getFieldKeys(cls);
+				Map<String, Field> fields = new HashMap<String, Field>();
+				for (int i = 0; i < declared.length; i++) {
+					fields.put(keys[i], declared[i]);
+				}
+
+				int count = (int) readVarLong();
+				for (int i = 0; i < count; i++) {
+					Field field = fields.get(readName());
+					Object value = readValue();
+					// field removed since serialization
+					if (field != null) {
+						field.set(object, value);
+					}
+				}
+				return object;
+			}
+			default:
+				throw new SVSCodecException("unknown tag " + tag);
+			}
+		}
+
+		@SuppressWarnings("unchecked")
+		private Collection<Object> newCollection(Class<?> cls) {
+			try {
+				return (Collection<Object>) newInstance(cls);
+			} catch (Exception e) {
+				// unmodifiable or wrapped collection
+				if (Set.class.isAssignableFrom(cls)) {
+					return new LinkedHashSet<Object>();
+				}
+				return new ArrayList<Object>();
+			}
+		}
+
+		@SuppressWarnings("unchecked")
+		private Map<Object, Object> newMap(Class<?> cls) {
+			try {
+				return (Map<Object, Object>) newInstance(cls);
+			} catch (Exception e) {
+				// unmodifiable or wrapped map
+				if (SortedMap.class.isAssignableFrom(cls)) {
+					return new TreeMap<Object, Object>();
+				}
+				return new LinkedHashMap<Object, Object>();
+			}
+		}
+
+		/**
+		 * create a sorted collection or map with its comparator
+		 */
+		private Object newSorted(Class<?> cls, Comparator<Object> comparator)
+				throws Exception {
+			try {
+				Constructor<?> constructor = cls
+						.getDeclaredConstructor(Comparator.class);
+				if (!isJdkClass(cls)) {
+					constructor.setAccessible(true);
+				}
+				return constructor.newInstance(comparator);
+			} catch (NoSuchMethodException e) {
+				// unmodifiable or wrapped collection
+				if (SortedMap.class.isAssignableFrom(cls)) {
+					return new TreeMap<Object, Object>(comparator);
+				}
+				return new TreeSet<Object>(comparator);
+			}
+		}
+
+		private Object newInstance(Class<?> cls) throws Exception {
+			Constructor<?> constructor = cls.getDeclaredConstructor();
+			if (!isJdkClass(cls)) {
+				constructor.setAccessible(true);
+			}
+			return constructor.newInstance();
+		}
+
+		private Class<?> getClass(String name) throws ClassNotFoundException {
+			Class<?> primitive = PRIMITIVES.get(name);
+			if (primitive != null) {
+				return primitive;
+			}
+			ClassLoader loader = Thread.currentThread().getContextClassLoader();
+			if (loader == null) {
+				loader = SVSBinaryCodec.class.getClassLoader();
+			}
+			return Class.forName(name, false, loader);
+		}
+
+		private String readName() throws IOException {
+			int index = (int) readVarLong();
+			if (index > 0) {
+				return names.get(index - 1);
+			}
+			String name = readString();
+			names.add(name);
+			return name;
+		}
+
+		private String readString() throws IOException {
+			byte[] bytes = new byte[(int) readVarLong()];
+			in.readFully(bytes);
+			// UTF-8 of older data is decoded too
+			return SVSByteDeltaEngine.decode(bytes);
+		}
+
+		private long readSignedVarLong() throws IOException {
+			long value = readVarLong();
+			return (value >>> 1) ^ -(value & 1);
+		}
+
+		private long readVarLong() throws IOException {
+			long value = 0;
+			int shift = 0;
+			int b;
+			do {
+				b = in.readUnsignedByte();
+				value |= (long) (b & 0x7F) << shift;
+				shift += 7;
+			} while ((b & 0x80) != 0);
+			return value;
+		}
+	}
+
+}
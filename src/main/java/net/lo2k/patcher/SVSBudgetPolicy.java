@@ -0,0 +1,44 @@
+/*
+ * Copyright 2011 Jrme Wax <jerome.wax@lo2k.net>
+ * http://www.lo2k.net
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.lo2k.patcher;
+
+/**
+ * what to do when a diff exceeds the step budget of its engine
+ * 
+ * @author wax
+ * 
+ */
+public enum SVSBudgetPolicy {
+
+	/**
+	 * diff remaining part line by line, delta is bigger
+	 */
+	LINES,
+
+	/**
+	 * delete and insert remaining part as a whole, delta is even bigger but
+	 * diff stops at once
+	 */
+	DELETE_INSERT,
+
+	/**
+	 * give up the delta, revision is stored as complete snapshot
+	 */
+	COMPLETE
+
+}
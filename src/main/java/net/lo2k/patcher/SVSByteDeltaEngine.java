@@ -0,0 +1,402 @@
+/*
+ * Copyright 2011 Jrme Wax <jerome.wax@lo2k.net>
+ * http://www.lo2k.net
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.lo2k.patcher;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+
+/**
+ * binary delta in the style of VCDIFF/xdelta: blocks of the source are
+ * indexed by a rolling hash, target is encoded as copies of source ranges and
+ * inserted bytes. Runs in near linear time, but a patch can only be applied
+ * on the exact source it was made from.
+ * 
+ * Delta format: source length, target length, then instructions. Each
+ * instruction starts with (length << 1 | type), an insert is followed by its
+ * bytes, a copy by its source offset relative to the end of previous copy.
+ * Every number is a varint.
+ * 
+ * Texts are encoded in CESU-8: like UTF-8, but each surrogate is encoded on
+ * its own, so any string is encoded losslessly, lone surrogates included.
+ * 
+ * @author wax
+ * 
+ */
+public class SVSByteDeltaEngine implements SVSDiffEngine {
+
+	/**
+	 * 
+	 */
+	private static final long serialVersionUID = -3115637416524245010L;
+
+	private static final int BLOCK_SIZE = 16;
+
+	private static final int PRIME = 0x01000193;
+
+	private static final int INSERT = 0;
+
+	private static final int COPY = 1;
+
+	@Override
+	public String diff(String text1, String text2) {
+		try {
+			byte[] delta = diff(encode(text1), encode(text2));
+			return new String(delta, SVSJavaCodec.CHARSET);
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	@Override
+	public String patch(String text, String patch) {
+		return compile(patch).apply(text);
+	}
+
+	@Override
+	public SVSPatchProgram compile(String patch) {
+		final byte[] delta;
+		try {
+			delta = patch.getBytes(SVSJavaCodec.CHARSET);
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+
+		return new SVSPatchProgram() {
+			@Override
+			public String apply(String text) {
+				byte[] result = patch(encode(text), delta);
+				if (result == null) {
+					return null;
+				}
+				try {
+					return decode(result);
+				} catch (IllegalArgumentException e) {
+					// malformed delta
+					return null;
+				}
+			}
+		};
+	}
+
+	/**
+	 * compute delta to rebuild target from source
+	 * 
+	 * @param source
+	 * @param target
+	 * @return
+	 */
+	public static byte[] diff(byte[] source, byte[] target) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(64);
+		writeVarInt(out, source.length);
+		writeVarInt(out, target.length);
+
+		int[] index = buildIndex(source);
+		int mask = index.length - 1;
+
+		// highest power of PRIME in a block, to remove leaving byte
+		int power = 1;
+		for (int i = 1; i < BLOCK_SIZE; i++) {
+			power *= PRIME;
+		}
+
+		int lastCopyEnd = 0;
+		int insertStart = 0;
+		int pos = 0;
+		int hash = 0;
+		boolean hashValid = false;
+
+		while (pos + BLOCK_SIZE <= target.length) {
+			if (!hashValid) {
+				hash = hash(target, pos);
+				hashValid = true;
+			}
+
+			int candidate = index[mix(hash) & mask] - 1;
+			if (candidate >= 0
+					&& equals(source, candidate, target, pos, BLOCK_SIZE)) {
+				// extend match backward into pending insert
+				int matchSource = candidate;
+				int matchTarget = pos;
+				while (matchSource > 0 && matchTarget > insertStart
+						&& source[matchSource - 1] == target[matchTarget - 1]) {
+					matchSource--;
+					matchTarget--;
+				}
+				// and forward
+				int end = pos + BLOCK_SIZE;
+				int sourceEnd = candidate + BLOCK_SIZE;
+				while (end < target.length && sourceEnd < source.length
+						&& source[sourceEnd] == target[end]) {
+					end++;
+					sourceEnd++;
+				}
+
+				writeInsert(out, target, insertStart, matchTarget);
+				int length = end - matchTarget;
+				writeVarInt(out, (length << 1) | COPY);
+				writeVarInt(out, zigzag(matchSource - lastCopyEnd));
+				lastCopyEnd = matchSource + length;
+
+				pos = end;
+				insertStart = end;
+				hashValid = false;
+			} else {
+				if (pos + BLOCK_SIZE < target.length) {
+					hash = (hash - target[pos] * power) * PRIME
+							+ target[pos + BLOCK_SIZE];
+				}
+				pos++;
+			}
+		}
+
+		writeInsert(out, target, insertStart, target.length);
+		return out.toByteArray();
+	}
+
+	/**
+	 * rebuild target from source and delta
+	 * 
+	 * @param source
+	 * @param delta
+	 * @return null if delta was not made from this source, or is malformed
+	 */
+	public static byte[] patch(byte[] source, byte[] delta) {
+		int[] pos = { 0 };
+		if (readVarInt(delta, pos) != source.length) {
+			return null;
+		}
+		int targetLength = readVarInt(delta, pos);
+		if (targetLength < 0) {
+			return null;
+		}
+		byte[] target = new byte[targetLength];
+
+		int written = 0;
+		int lastCopyEnd = 0;
+		while (pos[0] < delta.length) {
+			int instruction = readVarInt(delta, pos);
+			int length = instruction >>> 1;
+			// checks are written not to overflow
+			if (instruction == -1 || length > target.length - written) {
+				return null;
+			}
+			if ((instruction & 1) == COPY) {
+				int zigzagged = readVarInt(delta, pos);
+				long offset = lastCopyEnd + (long) unzigzag(zigzagged);
+				if (pos[0] < 0 || offset < 0
+						|| offset > source.length - length) {
+					return null;
+				}
+				System.arraycopy(source, (int) offset, target, written,
+						length);
+				lastCopyEnd = (int) offset + length;
+			} else {
+				if (length > delta.length - pos[0]) {
+					return null;
+				}
+				System.arraycopy(delta, pos[0], target, written, length);
+				pos[0] += length;
+			}
+			written += length;
+		}
+
+		if (written != target.length) {
+			return null;
+		}
+		return target;
+	}
+
+	/**
+	 * index every block of source, slot holds offset + 1
+	 */
+	private static int[] buildIndex(byte[] source) {
+		int blocks = source.length / BLOCK_SIZE;
+		int size = 16;
+		while (size < blocks * 2) {
+			size <<= 1;
+		}
+		int[] index = new int[size];
+		int mask = size - 1;
+
+		// backward so first block wins on collision
+		for (int b = blocks - 1; b >= 0; b--) {
+			int offset = b * BLOCK_SIZE;
+			index[mix(hash(source, offset)) & mask] = offset + 1;
+		}
+		return index;
+	}
+
+	private static int hash(byte[] data, int offset) {
+		int h = 0;
+		for (int i = offset; i < offset + BLOCK_SIZE; i++) {
+			h = h * PRIME + data[i];
+		}
+		return h;
+	}
+
+	private static int mix(int hash) {
+		int h = hash * 0x9E3779B1;
+		return h ^ (h >>> 15);
+	}
+
+	private static boolean equals(byte[] a, int aOffset, byte[] b,
+			int bOffset, int length) {
+		for (int i = 0; i < length; i++) {
+			if (a[aOffset + i] != b[bOffset + i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static void writeInsert(ByteArrayOutputStream out, byte[] target,
+			int start, int end) {
+		if (end > start) {
+			writeVarInt(out, ((end - start) << 1) | INSERT);
+			out.write(target, start, end - start);
+		}
+	}
+
+	private static int zigzag(int value) {
+		return (value << 1) ^ (value >> 31);
+	}
+
+	private static int unzigzag(int value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	private static void writeVarInt(ByteArrayOutputStream out, int value) {
+		int v = value;
+		while ((v & ~0x7F) != 0) {
+			out.write((v & 0x7F) | 0x80);
+			v >>>= 7;
+		}
+		out.write(v);
+	}
+
+	/**
+	 * read a varint at pos[0] and move pos[0] after it
+	 * 
+	 * @return -1 with pos[0] set to -1 if varint is truncated or too long
+	 */
+	private static int readVarInt(byte[] data, int[] pos) {
+		int value = 0;
+		int shift = 0;
+		int b;
+		do {
+			if (pos[0] < 0 || pos[0] >= data.length || shift > 28) {
+				pos[0] = -1;
+				return -1;
+			}
+			b = data[pos[0]++] & 0xFF;
+			value |= (b & 0x7F) << shift;
+			shift += 7;
+		} while ((b & 0x80) != 0);
+		return value;
+	}
+
+	/**
+	 * encode text in CESU-8
+	 * 
+	 * @param text
+	 * @return
+	 */
+	static byte[] encode(String text) {
+		int length = 0;
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			length += c < 0x80 ? 1 : c < 0x800 ? 2 : 3;
+		}
+
+		byte[] result = new byte[length];
+		int pos = 0;
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			if (c < 0x80) {
+				result[pos++] = (byte) c;
+			} else if (c < 0x800) {
+				result[pos++] = (byte) (0xC0 | c >> 6);
+				result[pos++] = (byte) (0x80 | c & 0x3F);
+			} else {
+				result[pos++] = (byte) (0xE0 | c >> 12);
+				result[pos++] = (byte) (0x80 | c >> 6 & 0x3F);
+				result[pos++] = (byte) (0x80 | c & 0x3F);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * decode text encoded by {@link #encode(String)}, 4 bytes UTF-8
+	 * sequences are accepted too
+	 * 
+	 * @param data
+	 * @return
+	 * @throws IllegalArgumentException
+	 *             if data is malformed
+	 */
+	static String decode(byte[] data) {
+		char[] chars = new char[data.length];
+		int length = 0;
+		int pos = 0;
+		while (pos < data.length) {
+			int b = data[pos++] & 0xFF;
+			int extra;
+			int value;
+			if (b < 0x80) {
+				extra = 0;
+				value = b;
+			} else if ((b & 0xE0) == 0xC0) {
+				extra = 1;
+				value = b & 0x1F;
+			} else if ((b & 0xF0) == 0xE0) {
+				extra = 2;
+				value = b & 0x0F;
+			} else if ((b & 0xF8) == 0xF0) {
+				extra = 3;
+				value = b & 0x07;
+			} else {
+				throw new IllegalArgumentException("malformed text at " + pos);
+			}
+			if (extra > data.length - pos) {
+				throw new IllegalArgumentException("truncated text");
+			}
+			for (int i = 0; i < extra; i++) {
+				int next = data[pos++] & 0xFF;
+				if ((next & 0xC0) != 0x80) {
+					throw new IllegalArgumentException("malformed text at "
+							+ pos);
+				}
+				value = value << 6 | next & 0x3F;
+			}
+
+			if (value >= 0x10000) {
+				if (value > Character.MAX_CODE_POINT) {
+					throw new IllegalArgumentException("malformed text at "
+							+ pos);
+				}
+				// 4 bytes for 2 chars, chars can't overflow
+				length += Character.toChars(value, chars, length);
+			} else {
+				chars[length++] = (char) value;
+			}
+		}
+		return new String(chars, 0, length);
+	}
+
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright 2011 Jrme Wax <jerome.wax@lo2k.net>
+ * http://www.lo2k.net
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.lo2k.patcher;
+
+import java.io.Serializable;
+
+/**
+ * serialization used to hash, diff and patch objects. A binary codec returns
+ * one char per byte (ISO-8859-1) so its output can be diffed as a string.
+ * 
+ * Implementations must have a public constructor without argument, the codec
+ * is saved with the repository.
+ * 
+ * @author wax
+ * 
+ */
+public interface SVSCodec extends Serializable {
+
+	/**
+	 * serialize an object
+	 * 
+	 * @param object
+	 * @return
+	 */
+	String encode(Object object);
+
+	/**
+	 * restore an object from its serialized form
+	 * 
+	 * @param string
+	 * @return
+	 */
+	Object decode(String string);
+
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright 2011 Jrme Wax <jerome.wax@lo2k.net>
+ * http://www.lo2k.net
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.lo2k.patcher;
+
+public class SVSCodecException extends RuntimeException {
+
+	/**
+	 * 
+	 */
+	private static final long serialVersionUID = 7412950983412385113L;
+
+	public SVSCodecException(String message) {
+		super(message);
+	}
+
+	public SVSCodecException(String message, Throwable cause) {
+		super(message, cause);
+	}
+
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright 2011 Jrme Wax <jerome.wax@lo2k.net>
+ * http://www.lo2k.net
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.lo2k.patcher;
+
+import java.io.Serializable;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import net.lo2k.zip.ZipUtil;
+
+/**
+ * preset dictionary used to compress small patches. It is trained from
+ * serialized snapshots: lines shared by several snapshots (yaml keys, class
+ * names...) are kept, most frequent at the end where deflate finds them
+ * cheaper.
+ * 
+ * A dictionary is never modified, a repository keeps every version so old
+ * patches can still be decoded after a new training.
+ * 
+ * @author wax
+ * 
+ */
+public class SVSCompressionDictionary implements Serializable {
+
+	/**
+	 * 
+	 */
+	private static final long serialVersionUID = -6140387261853702417L;
+
+	private static final String CHARSET = "UTF-8";
+
+	// deflate window size
+	public static final int MAX_SIZE = 32 * 1024;
+
+	// version number, starting at 1
+	private int version;
+
+	private byte[] bytes;
+
+	public SVSCompressionDictionary() {
+		this(0, new byte[0]);
+	}
+
+	public SVSCompressionDictionary(int version, byte[] bytes) {
+		this.version = version;
+		this.bytes = bytes;
+	}
+
+	/**
+	 * train a dictionary from serialized snapshots
+	 * 
+	 * @param samples
+	 *            serialized snapshots
+	 * @param version
+	 * @return
+	 */
+	public static SVSCompressionDictionary train(List<String> samples,
+			int version) {
+		// a line counts once per sample
+		final Map<String, Integer> counts = new HashMap<String, Integer>();
+		for (String sample : samples) {
+			Set<String> seen = new HashSet<String>();
+			for (String line : sample.split("\n")) {
+				if (line.length() > 0 && seen.add(line)) {
+					Integer count = counts.get(line);
+					counts.put(line, count == null ? 1 : count + 1);
+				}
+			}
+		}
+
+		int minCount = samples.size() > 1 ? 2 : 1;
+		List<String> lines = new ArrayList<String>();
+		for (Map.Entry<String, Integer> entry : counts.entrySet()) {
+			if (entry.getValue() >= minCount) {
+				lines.add(entry.getKey());
+			}
+		}
+
+		// best lines first: bytes saved by a line is its length by its count
+		Collections.sort(lines, new Comparator<String>() {
+			@Override
+			public int compare(String l1, String l2) {
+				long score1 = (long) l1.length() * counts.get(l1);
+				long score2 = (long) l2.length() * counts.get(l2);
+				if (score1 != score2) {
+					return score1 > score2 ? -1 : 1;
+				}
+				return l1.compareTo(l2);
+			}
+		});
+
+		try {
+			List<byte[]> kept = new ArrayList<byte[]>();
+			int size = 0;
+			for (String line : lines) {
+				byte[] lineBytes = (line + "\n").getBytes(CHARSET);
+				if (size + lineBytes.length > MAX_SIZE) {
+					continue;
+				}
+				kept.add(lineBytes);
+				size += lineBytes.length;
+			}
+
+			// best lines at the end, nearest from compressed data
+			byte[] result = new byte[size];
+			int offset = size;
+			for (byte[] lineBytes : kept) {
+				offset -= lineBytes.length;
+				System.arraycopy(lineBytes, 0, result, offset, lineBytes.length);
+			}
+			return new SVSCompressionDictionary(version, result);
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	public int getVersion() {
+		return version;
+	}
+
+	public void setVersion(int version) {
+		this.version = version;
+	}
+
+	/**
+	 * @return dictionary content, must not be modified
+	 */
+	public byte[] getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * @return dictionary encoded in base64, to be saved with repository
+	 */
+	public String getData() {
+		return ZipUtil.toBase64(bytes);
+	}
+
+	public void setData(String data) {
+		this.bytes = ZipUtil.fromBase64(data);
+	}
+
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright 2011 Jrme Wax <jerome.wax@lo2k.net>
+ * http://www.lo2k.net
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.lo2k.patcher;
+
+/**
+ * thrown when a diff exceeds its step budget and policy is
+ * {@link SVSBudgetPolicy#COMPLETE}
+ * 
+ * @author wax
+ * 
+ */
+public class SVSDiffBudgetException extends RuntimeException {
+
+	/**
+	 * 
+	 */
+	private static final long serialVersionUID = -6087213410985946617L;
+
+	public SVSDiffBudgetException(String message, Throwable cause) {
+		super(message, cause);
+	}
+
+}
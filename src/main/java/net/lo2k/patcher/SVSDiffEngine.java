@@ -0,0 +1,60 @@
+/*
+ * Copyright 2011 Jrme Wax <jerome.wax@lo2k.net>
+ * http://www.lo2k.net
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.lo2k.patcher;
+
+import java.io.Serializable;
+
+/**
+ * algorithm used to compute and apply a patch between two serialized
+ * objects. Each patch keeps the engine which made it.
+ * 
+ * Implementations must have a public constructor without argument, the engine
+ * is saved with the repository and its patches.
+ * 
+ * @author wax
+ * 
+ */
+public interface SVSDiffEngine extends Serializable {
+
+	/**
+	 * compute patch to transform text1 into text2
+	 * 
+	 * @param text1
+	 * @param text2
+	 * @return
+	 */
+	String diff(String text1, String text2);
+
+	/**
+	 * apply a patch
+	 * 
+	 * @param text
+	 * @param patch
+	 * @return patched text, null if patch can't be applied
+	 */
+	String patch(String text, String patch);
+
+	/**
+	 * decode a patch once to apply it many times
+	 * 
+	 * @param patch
+	 * @return
+	 */
+	SVSPatchProgram compile(String patch);
+
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2011 Jrme Wax <jerome.wax@lo2k.net>
+ * http://www.lo2k.net
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.lo2k.patcher;
+
+import java.util.LinkedList;
+
+import net.lo2k.thirdpart.diff.DiffMatchPatch;
+import net.lo2k.thirdpart.diff.DiffMatchPatch.DFMDiff;
+import net.lo2k.thirdpart.diff.DiffMatchPatch.DFMPatch;
+
+/**
+ * character diff with fuzzy patches: a patch can be applied on a text
+ * slightly different from the one it was made from. Default engine.
+ * 
+ * @author wax
+ * 
+ */
+public class SVSDiffMatchPatchEngine implements SVSDiffEngine {
+
+	/**
+	 * 
+	 */
+	private static final long serialVersionUID = 8046313560785398317L;
+
+	private static final DiffMatchPatch diffMatchPatch = new DiffMatchPatch();
+	static {
+		// diffMatchPatch.Match_Distance = 1;
+		diffMatchPatch.Diff_EditCost = 6;
+		// large snapshots are diffed on all cores
+		diffMatchPatch.Diff_ParallelThreshold = 1 << 16;
+	}
+
+	@Override
+	public String diff(String text1, String text2) {
+		LinkedList<DFMPatch> l = diffMatchPatch.dFMPatch_make(text1, text2);
+		return diffMatchPatch.dFMPatch_toText(l);
+	}
+
+	/**
+	 * make a fuzzy patch from an exact delta, without diffing again
+	 * 
+	 * @param text1
+	 *            text the delta applies on, used for patch context
+	 * @param delta
+	 *            delta made by {@link SVSExactDeltaEngine}
+	 * @return
+	 */
+	public String diffFromDelta(String text1, String delta) {
+		LinkedList<DFMDiff> diffs = SVSExactDeltaEngine.toDiffs(text1, delta);
+		if (diffs.size() > 2) {
+			diffMatchPatch.dFMDiff_cleanupEfficiency(diffs);
+		}
+		LinkedList<DFMPatch> l = diffMatchPatch.dFMPatch_make(text1, diffs);
+		return diffMatchPatch.dFMPatch_toText(l);
+	}
+
+	@Override
+	public String patch(String text, String patch) {
+		return compile(patch).apply(text);
+	}
+
+	@Override
+	public SVSPatchProgram compile(String patch) {
+		final LinkedList<DFMPatch> patches = new LinkedList<DFMPatch>(
+				diffMatchPatch.dFMPatch_fromText(patch));
+
+		return new SVSPatchProgram() {
+			@Override
+			public String apply(String text) {
+				// patches are deep copied by apply
+				Object[] objects = diffMatchPatch.dFMPatch_apply(patches, text);
+				boolean[] flags = (boolean[]) objects[1];
+				for (boolean flag : flags) {
+					if (flag == false) {
+						return null;
+					}
+				}
+				return objects[0].toString();
+			}
+		};
+	}
+
+}
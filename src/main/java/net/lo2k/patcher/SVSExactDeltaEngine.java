@@ -0,0 +1,572 @@
+/*
+ * Copyright 2011 Jrme Wax <jerome.wax@lo2k.net>
+ * http://www.lo2k.net
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.lo2k.patcher;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.LinkedList;
+import java.util.zip.CRC32;
+
+import net.lo2k.thirdpart.diff.DiffMatchPatch;
+import net.lo2k.thirdpart.diff.DiffMatchPatch.BudgetExceededException;
+import net.lo2k.thirdpart.diff.DiffMatchPatch.BudgetFallback;
+import net.lo2k.thirdpart.diff.DiffMatchPatch.DFMDiff;
+import net.lo2k.thirdpart.diff.DiffMatchPatch.Operation;
+
+/**
+ * character diff stored as a compact delta (=keep, -delete, *insert). A delta
+ * is applied with a single linear pass, without any fuzzy matching, so it can
+ * only be applied on the exact text it was made from: it starts with a
+ * checksum of its source (#crc). Default engine for delta snapshots.
+ * 
+ * Inserts are encoded in CESU-8, printable ASCII kept as is and other bytes
+ * escaped (%xx), so lone surrogates are kept. Older deltas, without checksum
+ * and with inserts URL-encoded in UTF-8 (+insert), can still be applied.
+ * 
+ * @author wax
+ * 
+ */
+public class SVSExactDeltaEngine implements SVSDiffEngine {
+
+	/**
+	 * 
+	 */
+	private static final long serialVersionUID = 1592046412087535340L;
+
+	private static final DiffMatchPatch diffMatchPatch = newDiffMatchPatch();
+
+	// edit graph steps per middle snake, 0 for wall clock timeout
+	private long maxSteps;
+
+	private SVSBudgetPolicy budgetPolicy = SVSBudgetPolicy.LINES;
+
+	public SVSExactDeltaEngine() {
+		//
+	}
+
+	/**
+	 * deterministic diff: same delta whatever the machine load
+	 * 
+	 * @param maxSteps
+	 *            max edit graph steps of a whole diff
+	 * @param budgetPolicy
+	 *            what to do when a diff needs more steps
+	 */
+	public SVSExactDeltaEngine(long maxSteps, SVSBudgetPolicy budgetPolicy) {
+		this.maxSteps = maxSteps;
+		this.budgetPolicy = budgetPolicy;
+	}
+
+	private static DiffMatchPatch newDiffMatchPatch() {
+		DiffMatchPatch dmp = new DiffMatchPatch();
+		dmp.Diff_EditCost = 6;
+		// large snapshots are diffed on all cores
+		dmp.Diff_ParallelThreshold = 1 << 16;
+		return dmp;
+	}
+
+	private static BudgetFallback getBudgetFallback(SVSBudgetPolicy policy) {
+		switch (policy) {
+		case COMPLETE:
+			return BudgetFallback.ABORT;
+		case DELETE_INSERT:
+			return BudgetFallback.DELETE_INSERT;
+		default:
+			return BudgetFallback.LINES;
+		}
+	}
+
+	@Override
+	public String diff(String text1, String text2) {
+		DiffMatchPatch dmp = diffMatchPatch;
+		if (maxSteps > 0) {
+			dmp = newDiffMatchPatch();
+			dmp.Diff_MaxSteps = maxSteps;
+			dmp.Diff_BudgetFallback = getBudgetFallback(budgetPolicy);
+			// budgeted diffs are sequential, to be reproducible
+			dmp.Diff_ParallelThreshold = 0;
+		}
+
+		LinkedList<DFMDiff> diffs;
+		try {
+			diffs = diff(dmp, text1, text2);
+		} catch (BudgetExceededException e) {
+			throw new SVSDiffBudgetException(e.getMessage(), e);
+		}
+		if (diffs.size() > 2) {
+			dmp.dFMDiff_cleanupEfficiency(diffs);
+		}
+
+		DeltaWriter writer = new DeltaWriter(checksum(text1));
+		for (DFMDiff d : diffs) {
+			switch (d.operation) {
+			case INSERT:
+				writer.add('+', d.text.length(), d.text);
+				break;
+			case DELETE:
+				writer.add('-', d.text.length(), null);
+				break;
+			case EQUAL:
+				writer.add('=', d.text.length(), null);
+				break;
+			}
+		}
+		return writer.toString();
+	}
+
+	/**
+	 * compute character diffs, delta is encoded by caller
+	 * 
+	 * @param dmp
+	 *            configured with budget of this engine
+	 * @param text1
+	 * @param text2
+	 * @return
+	 */
+	protected LinkedList<DFMDiff> diff(DiffMatchPatch dmp, String text1,
+			String text2) {
+		return dmp.dFMDiff_main(text1, text2);
+	}
+
+	@Override
+	public String patch(String text, String patch) {
+		try {
+			return compile(patch).apply(text);
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+	@Override
+	public SVSPatchProgram compile(String patch) {
+		return new Program(patch);
+	}
+
+	public long getMaxSteps() {
+		return maxSteps;
+	}
+
+	public void setMaxSteps(long maxSteps) {
+		this.maxSteps = maxSteps;
+	}
+
+	public SVSBudgetPolicy getBudgetPolicy() {
+		return budgetPolicy;
+	}
+
+	public void setBudgetPolicy(SVSBudgetPolicy budgetPolicy) {
+		this.budgetPolicy = budgetPolicy;
+	}
+
+	/**
+	 * compose two deltas without their texts: result of second applied on
+	 * result of first
+	 * 
+	 * @param first
+	 *            delta from text0 to text1
+	 * @param second
+	 *            delta from text1 to text2
+	 * @return delta from text0 to text2
+	 */
+	public static String compose(String first, String second) {
+		Program a = new Program(first);
+		Program b = new Program(second);
+		// result applies on source of first
+		DeltaWriter writer = new DeltaWriter(a.checksum);
+
+		int i = a.next(-1);
+		int j = b.next(-1);
+		// remaining length of current operations
+		int restA = i < a.length() ? a.lengths[i] : 0;
+		int restB = j < b.length() ? b.lengths[j] : 0;
+		while (true) {
+			if (i < a.length() && a.operations[i] == '-') {
+				// deleted from text0, unseen by second
+				writer.add('-', restA, null);
+				i = a.next(i);
+				restA = i < a.length() ? a.lengths[i] : 0;
+			} else if (j < b.length() && b.operations[j] == '+') {
+				// inserted in text2, unseen by first
+				writer.add('+', restB, b.inserts[j]);
+				j = b.next(j);
+				restB = j < b.length() ? b.lengths[j] : 0;
+			} else if (i < a.length() && j < b.length()) {
+				// text1 is produced by first and consumed by second
+				int n = Math.min(restA, restB);
+				if (a.operations[i] == '=') {
+					writer.add(b.operations[j], n, null);
+				} else if (b.operations[j] == '=') {
+					int offset = a.lengths[i] - restA;
+					writer.add('+', n, a.inserts[i].substring(offset,
+							offset + n));
+				}
+				restA -= n;
+				restB -= n;
+				if (restA == 0) {
+					i = a.next(i);
+					restA = i < a.length() ? a.lengths[i] : 0;
+				}
+				if (restB == 0) {
+					j = b.next(j);
+					restB = j < b.length() ? b.lengths[j] : 0;
+				}
+			} else if (i < a.length() || j < b.length()) {
+				throw new IllegalArgumentException(
+						"deltas can't be composed, length mismatch");
+			} else {
+				return writer.toString();
+			}
+		}
+	}
+
+	/**
+	 * invert a delta, deleted characters are read in its source
+	 * 
+	 * @param source
+	 *            text the delta applies on
+	 * @param delta
+	 * @return delta from patched text back to source
+	 */
+	public static String invert(String source, String delta) {
+		Program program = new Program(delta);
+		String target = program.apply(source);
+		if (target == null) {
+			throw new IllegalArgumentException("delta doesn't apply on source");
+		}
+
+		DeltaWriter writer = new DeltaWriter(checksum(target));
+		int pointer = 0;
+		for (int i = program.next(-1); i < program.length(); i = program
+				.next(i)) {
+			int length = program.lengths[i];
+			switch (program.operations[i]) {
+			case '+':
+				writer.add('-', length, null);
+				break;
+			case '=':
+				writer.add('=', length, null);
+				pointer += length;
+				break;
+			case '-':
+				writer.add('+', length, source.substring(pointer, pointer
+						+ length));
+				pointer += length;
+				break;
+			}
+		}
+		return writer.toString();
+	}
+
+	/**
+	 * diffs of a delta, to make a fuzzy patch from it
+	 * 
+	 * @param source
+	 *            text the delta applies on
+	 * @param delta
+	 * @return
+	 */
+	static LinkedList<DFMDiff> toDiffs(String source, String delta) {
+		Program program = new Program(delta);
+		if (source.length() != program.sourceLength) {
+			throw new IllegalArgumentException("delta doesn't apply on source");
+		}
+
+		LinkedList<DFMDiff> diffs = new LinkedList<DFMDiff>();
+		int pointer = 0;
+		for (int i = program.next(-1); i < program.length(); i = program
+				.next(i)) {
+			int length = program.lengths[i];
+			switch (program.operations[i]) {
+			case '+':
+				diffs.add(new DFMDiff(Operation.INSERT, program.inserts[i]));
+				break;
+			case '=':
+				diffs.add(new DFMDiff(Operation.EQUAL, source.substring(
+						pointer, pointer + length)));
+				pointer += length;
+				break;
+			case '-':
+				diffs.add(new DFMDiff(Operation.DELETE, source.substring(
+						pointer, pointer + length)));
+				pointer += length;
+				break;
+			}
+		}
+		return diffs;
+	}
+
+	/**
+	 * CRC32 of a text, each char counted as 2 bytes
+	 * 
+	 * @param text
+	 * @return
+	 */
+	static int checksum(String text) {
+		CRC32 crc = new CRC32();
+		byte[] buffer = new byte[2 * Math.min(text.length(), 4096)];
+		int n = 0;
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			buffer[n++] = (byte) (c >> 8);
+			buffer[n++] = (byte) c;
+			if (n == buffer.length) {
+				crc.update(buffer, 0, n);
+				n = 0;
+			}
+		}
+		crc.update(buffer, 0, n);
+		return (int) crc.getValue();
+	}
+
+	/**
+	 * escape insert encoded in CESU-8, printable ASCII and new lines kept
+	 * 
+	 * @param text
+	 * @return
+	 */
+	private static String escape(String text) {
+		byte[] bytes = SVSByteDeltaEngine.encode(text);
+		StringBuilder escaped = new StringBuilder(bytes.length);
+		for (byte b : bytes) {
+			if (b >= 0x20 && b < 0x7f && b != '%' || b == '\n') {
+				escaped.append((char) b);
+			} else {
+				escaped.append('%').append(HEX[(b >> 4) & 0xf]).append(
+						HEX[b & 0xf]);
+			}
+		}
+		return escaped.toString();
+	}
+
+	private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+	/**
+	 * decode insert escaped by {@link #escape(String)}
+	 * 
+	 * @param escaped
+	 * @return
+	 */
+	private static String unescape(String escaped) {
+		byte[] bytes = new byte[escaped.length()];
+		int n = 0;
+		for (int i = 0; i < escaped.length(); i++) {
+			char c = escaped.charAt(i);
+			if (c == '%') {
+				if (i + 2 >= escaped.length()) {
+					throw new IllegalArgumentException("truncated escape");
+				}
+				int high = Character.digit(escaped.charAt(i + 1), 16);
+				int low = Character.digit(escaped.charAt(i + 2), 16);
+				if (high < 0 || low < 0) {
+					throw new IllegalArgumentException("invalid escape "
+							+ escaped.substring(i, i + 3));
+				}
+				bytes[n++] = (byte) (high << 4 | low);
+				i += 2;
+			} else if (c < 0x80) {
+				bytes[n++] = (byte) c;
+			} else {
+				throw new IllegalArgumentException("invalid insert char " + c);
+			}
+		}
+		byte[] decoded = new byte[n];
+		System.arraycopy(bytes, 0, decoded, 0, n);
+		return SVSByteDeltaEngine.decode(decoded);
+	}
+
+	/**
+	 * write a delta, consecutive operations of same type are merged
+	 */
+	private static class DeltaWriter {
+
+		private final StringBuilder delta = new StringBuilder();
+
+		private final StringBuilder insert = new StringBuilder();
+
+		private char operation;
+
+		private int length;
+
+		/**
+		 * @param checksum
+		 *            of source, null if unknown
+		 */
+		DeltaWriter(Integer checksum) {
+			if (checksum != null) {
+				delta.append('#').append(Integer.toHexString(checksum));
+			}
+		}
+
+		void add(char op, int n, String text) {
+			if (n == 0) {
+				return;
+			}
+			if (op != operation) {
+				flush();
+				operation = op;
+			}
+			length += n;
+			if (op == '+') {
+				insert.append(text);
+			}
+		}
+
+		private void flush() {
+			if (length == 0) {
+				return;
+			}
+			if (delta.length() > 0) {
+				delta.append('\t');
+			}
+			if (operation == '+') {
+				delta.append('*').append(escape(insert.toString()));
+				insert.setLength(0);
+			} else {
+				delta.append(operation).append(length);
+			}
+			length = 0;
+		}
+
+		@Override
+		public String toString() {
+			flush();
+			return delta.toString();
+		}
+	}
+
+	/**
+	 * delta decoded in arrays: kept or deleted lengths, and inserted texts
+	 */
+	private static class Program implements SVSPatchProgram {
+
+		private final char[] operations;
+
+		private final int[] lengths;
+
+		private final String[] inserts;
+
+		private final int sourceLength;
+
+		// checksum of source, null for older deltas
+		private Integer checksum;
+
+		Program(String delta) {
+			String[] tokens = delta.split("\t");
+			operations = new char[tokens.length];
+			lengths = new int[tokens.length];
+			inserts = new String[tokens.length];
+
+			int length = 0;
+			for (int i = 0; i < tokens.length; i++) {
+				String token = tokens[i];
+				if (token.length() == 0) {
+					continue;
+				}
+				operations[i] = token.charAt(0);
+				String param = token.substring(1);
+				switch (operations[i]) {
+				case '#':
+					try {
+						checksum = (int) Long.parseLong(param, 16);
+					} catch (NumberFormatException e) {
+						throw new IllegalArgumentException(
+								"invalid checksum " + param, e);
+					}
+					operations[i] = 0;
+					break;
+				case '*':
+					inserts[i] = unescape(param);
+					lengths[i] = inserts[i].length();
+					operations[i] = '+';
+					break;
+				case '+':
+					// decode would change all "+" to " "
+					try {
+						inserts[i] = URLDecoder.decode(param.replace("+",
+								"%2B"), "UTF-8");
+					} catch (UnsupportedEncodingException e) {
+						throw new IllegalStateException(e);
+					}
+					lengths[i] = inserts[i].length();
+					break;
+				case '-':
+				case '=':
+					try {
+						lengths[i] = Integer.parseInt(param);
+					} catch (NumberFormatException e) {
+						throw new IllegalArgumentException("invalid length "
+								+ param, e);
+					}
+					if (lengths[i] < 0) {
+						throw new IllegalArgumentException("invalid length "
+								+ param);
+					}
+					length += lengths[i];
+					break;
+				default:
+					throw new IllegalArgumentException("invalid operation "
+							+ token.charAt(0));
+				}
+			}
+			sourceLength = length;
+		}
+
+		int length() {
+			return operations.length;
+		}
+
+		/**
+		 * @param i
+		 * @return index of next operation after i, skipping empty tokens
+		 */
+		int next(int i) {
+			int n = i + 1;
+			while (n < operations.length && operations[n] == 0) {
+				n++;
+			}
+			return n;
+		}
+
+		@Override
+		public String apply(String text) {
+			if (text.length() != sourceLength || checksum != null
+					&& checksum.intValue() != checksum(text)) {
+				return null;
+			}
+
+			StringBuilder result = new StringBuilder(text.length());
+			int pointer = 0;
+			for (int i = 0; i < operations.length; i++) {
+				switch (operations[i]) {
+				case '+':
+					result.append(inserts[i]);
+					break;
+				case '=':
+					result.append(text, pointer, pointer + lengths[i]);
+					pointer += lengths[i];
+					break;
+				case '-':
+					pointer += lengths[i];
+					break;
+				}
+			}
+			return result.toString();
+		}
+	}
+
+}
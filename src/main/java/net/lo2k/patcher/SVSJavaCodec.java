@@ -0,0 +1,69 @@
+/*
+ * Copyright 2011 Jrme Wax <jerome.wax@lo2k.net>
+ * http://www.lo2k.net
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.lo2k.patcher;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+/**
+ * standard java serialization, one char per byte
+ * 
+ * @author wax
+ * 
+ */
+public class SVSJavaCodec implements SVSCodec {
+
+	/**
+	 * 
+	 */
+	private static final long serialVersionUID = 5519402745372816604L;
+
+	static final String CHARSET = "ISO-8859-1";
+
+	@Override
+	public String encode(Object object) {
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			ObjectOutputStream oos = new ObjectOutputStream(out);
+			oos.writeObject(object);
+			oos.close();
+			return out.toString(CHARSET);
+		} catch (IOException e) {
+			throw new SVSCodecException("cannot serialize " + object, e);
+		}
+	}
+
+	@Override
+	public Object decode(String string) {
+		try {
+			ObjectInputStream ois = new ObjectInputStream(
+					new ByteArrayInputStream(string.getBytes(CHARSET)));
+			Object object = ois.readObject();
+			ois.close();
+			return object;
+		} catch (IOException e) {
+			throw new SVSCodecException("cannot deserialize", e);
+		} catch (ClassNotFoundException e) {
+			throw new SVSCodecException("cannot deserialize", e);
+		}
+	}
+
+}
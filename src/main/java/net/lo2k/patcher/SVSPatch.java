@@ -18,35 +18,171 @@
 package net.lo2k.patcher;
 
 import java.io.Serializable;
+import java.lang.ref.SoftReference;
 
+import net.lo2k.zip.Compression;
 import net.lo2k.zip.ZipUtil;
 
 public class SVSPatch<T extends Serializable> implements Serializable {
 	/**
 	 * 
 	 */
-	private static final long serialVersionUID = 3362578737458614543L;
-	private String patch;
+	private static final long serialVersionUID = -5527187452139648937L;
+	// compressed patch text
+	private byte[] patch;
+
+	// engine which made the patch, null for default fuzzy patch
+	private SVSDiffEngine engine;
+
+	private Compression compression;
+
+	// version of dictionary used to compress patch, 0 for none
+	private int dictionaryVersion;
+
+	private transient SVSCompressionDictionary dictionary;
+
+	// decoded patch, released under memory pressure
+	private transient volatile SoftReference<SVSPatchProgram> program;
 
 	public SVSPatch() {
 		this("");
 	}
 
 	public SVSPatch(String string) {
-		setPatch(string);
+		this(string, null);
+	}
+
+	public SVSPatch(String string, SVSDiffEngine engine) {
+		this(string, engine, null);
 	}
 
-	public final void setPatch(String patch) {
-		this.patch = ZipUtil.zip(patch);
+	/**
+	 * @param string
+	 *            patch text
+	 * @param engine
+	 *            engine which made the patch, null for default fuzzy patch
+	 * @param dictionary
+	 *            preset dictionary to compress patch, null for none
+	 */
+	public SVSPatch(String string, SVSDiffEngine engine,
+			SVSCompressionDictionary dictionary) {
+		this(string, engine, dictionary, Compression.DEFLATE);
+	}
+
+	/**
+	 * @param string
+	 *            patch text
+	 * @param engine
+	 *            engine which made the patch, null for default fuzzy patch
+	 * @param dictionary
+	 *            preset dictionary to compress patch, null for none
+	 * @param compression
+	 *            compression method of patch
+	 */
+	public SVSPatch(String string, SVSDiffEngine engine,
+			SVSCompressionDictionary dictionary, Compression compression) {
+		this.engine = engine;
+		this.dictionary = dictionary;
+		this.compression = compression;
+		if (dictionary == null) {
+			this.dictionaryVersion = 0;
+			this.patch = compression.compress(string, null);
+		} else {
+			this.dictionaryVersion = dictionary.getVersion();
+			this.patch = compression.compress(string, dictionary.getBytes());
+		}
 	}
 
 	public String getPatch() {
-		return ZipUtil.unZip(patch);
-		// return patch;
+		if (needsDictionary()) {
+			throw new IllegalStateException("dictionary " + dictionaryVersion
+					+ " is not attached to patch");
+		}
+		return compression.decompress(patch, dictionary == null ? null
+				: dictionary.getBytes());
+	}
+
+	public Compression getCompression() {
+		return compression;
+	}
+
+	public void setCompression(Compression compression) {
+		this.compression = compression;
+		this.program = null;
+	}
+
+	/**
+	 * @return compressed patch encoded in base64, to be saved with repository
+	 */
+	public String getData() {
+		return ZipUtil.toBase64(patch);
+	}
+
+	public void setData(String data) {
+		this.patch = ZipUtil.fromBase64(data);
+		this.program = null;
+	}
+
+	public int getDictionaryVersion() {
+		return dictionaryVersion;
+	}
+
+	public void setDictionaryVersion(int dictionaryVersion) {
+		this.dictionaryVersion = dictionaryVersion;
+		this.dictionary = null;
+		this.program = null;
+	}
+
+	/**
+	 * @return true if patch was compressed with a dictionary not attached yet
+	 *         (loaded patch)
+	 */
+	public boolean needsDictionary() {
+		return dictionaryVersion != 0 && dictionary == null;
+	}
+
+	/**
+	 * attach dictionary used to compress a loaded patch
+	 * 
+	 * @param dictionary
+	 */
+	public void attachDictionary(SVSCompressionDictionary dictionary) {
+		if (dictionary.getVersion() != dictionaryVersion) {
+			throw new IllegalArgumentException("patch needs dictionary "
+					+ dictionaryVersion + ", not " + dictionary.getVersion());
+		}
+		this.dictionary = dictionary;
+	}
+
+	public SVSDiffEngine getEngine() {
+		return engine;
+	}
+
+	public void setEngine(SVSDiffEngine engine) {
+		this.engine = engine;
+		this.program = null;
+	}
+
+	/**
+	 * get decoded patch, patch is only unzipped and parsed on first call
+	 * 
+	 * @param defaultEngine
+	 *            engine used when patch doesn't know its engine
+	 * @return
+	 */
+	public SVSPatchProgram compile(SVSDiffEngine defaultEngine) {
+		SoftReference<SVSPatchProgram> reference = program;
+		SVSPatchProgram result = reference == null ? null : reference.get();
+		if (result == null) {
+			SVSDiffEngine patchEngine = engine == null ? defaultEngine : engine;
+			result = patchEngine.compile(getPatch());
+			program = new SoftReference<SVSPatchProgram>(result);
+		}
+		return result;
 	}
 
 	public int getSize() {
-		return patch.length();
+		return patch.length;
 		// return 0;
 	}
 
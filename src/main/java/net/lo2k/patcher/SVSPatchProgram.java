@@ -0,0 +1,37 @@
+/*
+ * Copyright 2011 Jrme Wax <jerome.wax@lo2k.net>
+ * http://www.lo2k.net
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.lo2k.patcher;
+
+/**
+ * decoded form of a patch, ready to be applied. A program is immutable and
+ * can be applied many times, on many texts.
+ * 
+ * @author wax
+ * 
+ */
+public interface SVSPatchProgram {
+
+	/**
+	 * apply program on a serialized object
+	 * 
+	 * @param text
+	 * @return patched text, null if program can't be applied
+	 */
+	String apply(String text);
+
+}
@@ -17,96 +17,253 @@
 
 package net.lo2k.patcher;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.EOFException;
-import java.io.FileWriter;
-import java.io.IOException;
 import java.io.Serializable;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.LinkedList;
+import java.util.List;
 
-import net.lo2k.thirdpart.diff.DiffMatchPatch;
-import net.lo2k.thirdpart.diff.DiffMatchPatch.DFMPatch;
-
-import org.ho.yaml.YamlDecoder;
-import org.ho.yaml.YamlEncoder;
+import net.lo2k.zip.Compression;
 
 public class SVSPatcher<T extends Serializable> {
 
-	private static final DiffMatchPatch diffMatchPatch = new DiffMatchPatch();
+	private static final SVSDiffMatchPatchEngine fuzzyEngine = new SVSDiffMatchPatchEngine();
 
-	public SVSPatch<T> makeSVSPatchFor(T object1, T object2) {
-		String xml1 = getStringFor(object1);
-		String xml2 = getStringFor(object2);
+	private final SVSCodec codec;
+
+	private final SVSDiffEngine deltaEngine;
+
+	// compression dictionaries by version, last one is used for new deltas
+	private final List<SVSCompressionDictionary> dictionaries;
+
+	private final Compression compression;
+
+	public SVSPatcher() {
+		this(new SVSYamlCodec());
+	}
+
+	/**
+	 * @param codec
+	 *            serialization used to hash, diff and patch objects
+	 */
+	public SVSPatcher(SVSCodec codec) {
+		this(codec, new SVSExactDeltaEngine());
+	}
+
+	/**
+	 * @param codec
+	 *            serialization used to hash, diff and patch objects
+	 * @param deltaEngine
+	 *            engine used for deltas applied on the exact object they were
+	 *            made from
+	 */
+	public SVSPatcher(SVSCodec codec, SVSDiffEngine deltaEngine) {
+		this(codec, deltaEngine, null);
+	}
+
+	/**
+	 * @param codec
+	 *            serialization used to hash, diff and patch objects
+	 * @param deltaEngine
+	 *            engine used for deltas applied on the exact object they were
+	 *            made from
+	 * @param dictionaries
+	 *            compression dictionaries of deltas, version n at index n - 1.
+	 *            List is shared, not copied. Null for none.
+	 */
+	public SVSPatcher(SVSCodec codec, SVSDiffEngine deltaEngine,
+			List<SVSCompressionDictionary> dictionaries) {
+		this(codec, deltaEngine, dictionaries, Compression.DEFLATE);
+	}
+
+	/**
+	 * @param codec
+	 *            serialization used to hash, diff and patch objects
+	 * @param deltaEngine
+	 *            engine used for deltas applied on the exact object they were
+	 *            made from
+	 * @param dictionaries
+	 *            compression dictionaries of deltas, version n at index n - 1.
+	 *            List is shared, not copied. Null for none.
+	 * @param compression
+	 *            compression method of deltas
+	 */
+	public SVSPatcher(SVSCodec codec, SVSDiffEngine deltaEngine,
+			List<SVSCompressionDictionary> dictionaries, Compression compression) {
+		this.codec = codec;
+		this.deltaEngine = deltaEngine;
+		this.dictionaries = dictionaries;
+		this.compression = compression;
+	}
+
+	public SVSCodec getCodec() {
+		return codec;
+	}
+
+	public SVSDiffEngine getDeltaEngine() {
+		return deltaEngine;
+	}
 
-		// diffMatchPatch.Match_Distance = 1;
-		diffMatchPatch.Diff_EditCost = 6;
-		LinkedList<DFMPatch> l = diffMatchPatch.dFMPatch_make(xml1, xml2);
+	public SVSPatch<T> makeSVSPatchFor(T object1, T object2) {
+		return makeSVSPatchForStrings(getStringFor(object1),
+				getStringFor(object2));
+	}
 
-		return new SVSPatch<T>(diffMatchPatch.dFMPatch_toText(l));
+	/**
+	 * create a patch between two serialized objects
+	 * 
+	 * @param xml1
+	 * @param xml2
+	 * @return
+	 */
+	public SVSPatch<T> makeSVSPatchForStrings(String xml1, String xml2) {
+		return new SVSPatch<T>(fuzzyEngine.diff(xml1, xml2));
 
 		// return new Patch<T>()
 	}
 
-	public T patchWith(T object1, SVSPatch<T> patch) {
-		String xml1 = getStringFor(object1);
-		LinkedList<DFMPatch> patches = new LinkedList<DFMPatch>(
-				diffMatchPatch.dFMPatch_fromText(patch.getPatch()));
-
-		Object[] objects = diffMatchPatch.dFMPatch_apply(patches, xml1);
-		boolean[] flags = (boolean[]) objects[1];
-		for (boolean flag : flags) {
-			if (flag == false) {
-				// System.out.println("INFO cannot patch :\n"+patches.get(i)+"\n*********");
-
-				// DEBUG PART
-				FileWriter fdebug;
-				try {
-					fdebug = new FileWriter("debug.dmp");
-					fdebug.write(object1.toString());
-					fdebug.write("\n\nPATCH ************\n\n");
-					fdebug.write(patch.getPatch().toString());
-					fdebug.close();
-					System.exit(-1);
-				} catch (IOException e) {
-					// TODO Auto-generated catch block
-					e.printStackTrace();
-				}
+	/**
+	 * create a delta between two serialized objects with delta engine. Delta
+	 * can only be applied on xml1.
+	 * 
+	 * @param xml1
+	 * @param xml2
+	 * @return
+	 */
+	public SVSPatch<T> makeDeltaForStrings(String xml1, String xml2) {
+		SVSCompressionDictionary dictionary = getDictionary();
+		if (deltaEngine instanceof SVSDiffMatchPatchEngine) {
+			return new SVSPatch<T>(fuzzyEngine.diff(xml1, xml2), null,
+					dictionary, compression);
+		}
+		return new SVSPatch<T>(deltaEngine.diff(xml1, xml2), deltaEngine,
+				dictionary, compression);
+	}
 
-			}
+	/**
+	 * @return dictionary used to compress new deltas, null for none
+	 */
+	public SVSCompressionDictionary getDictionary() {
+		if (dictionaries == null || dictionaries.isEmpty()) {
+			return null;
 		}
+		return dictionaries.get(dictionaries.size() - 1);
+	}
 
-		// System.out.println(objects[0].toString());
-		// System.out.println(flags.length);
-		return getObjectFromString(objects[0].toString());
+	/**
+	 * get a dictionary by version
+	 * 
+	 * @param version
+	 * @return
+	 */
+	public SVSCompressionDictionary getDictionary(int version) {
+		if (dictionaries == null || version < 1
+				|| version > dictionaries.size()) {
+			throw new IllegalStateException("unknown dictionary " + version);
+		}
+		return dictionaries.get(version - 1);
 	}
 
-	public String getStringFor(T object) {
-		ByteArrayOutputStream sw = new ByteArrayOutputStream();
-		YamlEncoder xenc = new YamlEncoder(sw);
-		// xenc.getConfig().setEncoding("UTF-8");
-		// XMLEncoder xenc = new XMLEncoder(sw);
+	/**
+	 * @param patch
+	 * @return true if patch can be composed or inverted
+	 */
+	public boolean isComposable(SVSPatch<T> patch) {
+		return patch.getEngine() instanceof SVSExactDeltaEngine;
+	}
+
+	/**
+	 * compose deltas made by {@link SVSExactDeltaEngine}, without their
+	 * texts. Cost depends on number of changes, not on text length.
+	 * 
+	 * @param patches
+	 *            each patch applies on result of previous one
+	 * @return delta from source of first patch to result of last one
+	 */
+	public SVSPatch<T> composePatches(List<SVSPatch<T>> patches) {
+		if (patches.isEmpty()) {
+			throw new IllegalArgumentException("no patch to compose");
+		}
+		String delta = null;
+		for (SVSPatch<T> patch : patches) {
+			String next = getComposablePatch(patch);
+			delta = delta == null ? next : SVSExactDeltaEngine.compose(delta,
+					next);
+		}
+		return new SVSPatch<T>(delta, patches.get(0).getEngine(),
+				getDictionary(), compression);
+	}
+
+	/**
+	 * invert a delta made by {@link SVSExactDeltaEngine}
+	 * 
+	 * @param xml1
+	 *            serialized object the delta applies on
+	 * @param patch
+	 * @return delta from patched object back to xml1
+	 */
+	public SVSPatch<T> invertPatch(String xml1, SVSPatch<T> patch) {
+		return new SVSPatch<T>(SVSExactDeltaEngine.invert(xml1,
+				getComposablePatch(patch)), patch.getEngine(), getDictionary(),
+				compression);
+	}
 
-		xenc.writeObject(object);
-		xenc.close();
-		return sw.toString();
+	/**
+	 * make a fuzzy patch, like {@link #makeSVSPatchForStrings}, from a delta
+	 * made by {@link SVSExactDeltaEngine}
+	 * 
+	 * @param xml1
+	 *            serialized object the delta applies on
+	 * @param delta
+	 * @return
+	 */
+	public SVSPatch<T> makeSVSPatchForDelta(String xml1, SVSPatch<T> delta) {
+		return new SVSPatch<T>(fuzzyEngine.diffFromDelta(xml1,
+				getComposablePatch(delta)));
+	}
+
+	private String getComposablePatch(SVSPatch<T> patch) {
+		if (!isComposable(patch)) {
+			throw new IllegalArgumentException("patch made by "
+					+ patch.getEngine() + " can't be composed");
+		}
+		if (patch.needsDictionary()) {
+			patch.attachDictionary(getDictionary(patch.getDictionaryVersion()));
+		}
+		return patch.getPatch();
+	}
+
+	public T patchWith(T object1, SVSPatch<T> patch) {
+		return getObjectFromString(patchString(getStringFor(object1), patch));
+	}
+
+	/**
+	 * apply a patch on a serialized object
+	 * 
+	 * @param xml1
+	 * @param patch
+	 * @return patched serialized object
+	 * @throws IllegalStateException
+	 *             if patch doesn't apply on xml1
+	 */
+	public String patchString(String xml1, SVSPatch<T> patch) {
+		if (patch.needsDictionary()) {
+			patch.attachDictionary(getDictionary(patch.getDictionaryVersion()));
+		}
+		String result = patch.compile(fuzzyEngine).apply(xml1);
+		if (result == null) {
+			throw new IllegalStateException("patch can't be applied on "
+					+ xml1.length() + " chars text");
+		}
+		return result;
+	}
+
+	public String getStringFor(T object) {
+		return codec.encode(object);
 	}
 
 	@SuppressWarnings("unchecked")
 	public T getObjectFromString(String xml) {
-		YamlDecoder xdec = new YamlDecoder(new ByteArrayInputStream(
-				xml.getBytes()));
-		// XMLDecoder xdec = new XMLDecoder(new
-		// ByteArrayInputStream(xml.getBytes()));
-		// xdec.getConfig().setEncoding("UTF-8");
-		try {
-			return (T) xdec.readObject();
-		} catch (EOFException e) {
-			// TODO Auto-generated catch block
-			return null;
-		}
+		return (T) codec.decode(xml);
 	}
 
 	/**
@@ -116,8 +273,16 @@ public class SVSPatcher<T extends Serializable> {
 	 * @return
 	 */
 	public String getHashFor(T object) {
+		return getHashForString(getStringFor(object));
+	}
 
-		String stringToHash = getStringFor(object);
+	/**
+	 * create hash for a serialized object
+	 * 
+	 * @param stringToHash
+	 * @return
+	 */
+	public String getHashForString(String stringToHash) {
 
 		byte[] source = stringToHash.getBytes();
 		byte[] hash = null;
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2011 Jrme Wax <jerome.wax@lo2k.net>
+ * http://www.lo2k.net
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.lo2k.patcher;
+
+import java.util.LinkedList;
+
+import net.lo2k.thirdpart.diff.DiffMatchPatch;
+import net.lo2k.thirdpart.diff.DiffMatchPatch.DFMDiff;
+
+/**
+ * exact delta computed with a patience diff anchored on unique lines. Faster
+ * than the default engine on large line oriented texts, like yaml, with
+ * moved or rewritten blocks. Deltas have the same format and can be composed.
+ * 
+ * @author wax
+ * 
+ */
+public class SVSPatienceDeltaEngine extends SVSExactDeltaEngine {
+
+	/**
+	 * 
+	 */
+	private static final long serialVersionUID = -2456710327046262553L;
+
+	public SVSPatienceDeltaEngine() {
+		super();
+	}
+
+	/**
+	 * @param maxSteps
+	 *            max edit graph steps of all gaps diffed character by character
+	 * @param budgetPolicy
+	 */
+	public SVSPatienceDeltaEngine(long maxSteps, SVSBudgetPolicy budgetPolicy) {
+		super(maxSteps, budgetPolicy);
+	}
+
+	@Override
+	protected LinkedList<DFMDiff> diff(DiffMatchPatch dmp, String text1,
+			String text2) {
+		return dmp.dFMDiff_patience(text1, text2);
+	}
+
+}
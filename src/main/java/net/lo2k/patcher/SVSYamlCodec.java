@@ -0,0 +1,67 @@
+/*
+ * Copyright 2011 Jrme Wax <jerome.wax@lo2k.net>
+ * http://www.lo2k.net
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.lo2k.patcher;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+
+import org.ho.yaml.YamlDecoder;
+import org.ho.yaml.YamlEncoder;
+
+/**
+ * human readable codec, default one
+ * 
+ * @author wax
+ * 
+ */
+public class SVSYamlCodec implements SVSCodec {
+
+	/**
+	 * 
+	 */
+	private static final long serialVersionUID = -2260815327271906455L;
+
+	@Override
+	public String encode(Object object) {
+		ByteArrayOutputStream sw = new ByteArrayOutputStream();
+		YamlEncoder xenc = new YamlEncoder(sw);
+		// xenc.getConfig().setEncoding("UTF-8");
+		// XMLEncoder xenc = new XMLEncoder(sw);
+
+		xenc.writeObject(object);
+		xenc.close();
+		return sw.toString();
+	}
+
+	@Override
+	public Object decode(String xml) {
+		YamlDecoder xdec = new YamlDecoder(new ByteArrayInputStream(
+				xml.getBytes()));
+		// XMLDecoder xdec = new XMLDecoder(new
+		// ByteArrayInputStream(xml.getBytes()));
+		// xdec.getConfig().setEncoding("UTF-8");
+		try {
+			return xdec.readObject();
+		} catch (EOFException e) {
+			// TODO Auto-generated catch block
+			return null;
+		}
+	}
+
+}
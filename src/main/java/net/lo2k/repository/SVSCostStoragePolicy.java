@@ -0,0 +1,93 @@
+/*
+ * Copyright 2011 Jrme Wax <jerome.wax@lo2k.net>
+ * http://www.lo2k.net
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.lo2k.repository;
+
+/**
+ * storage policy weighing compressed bytes against restore cost. Storing a
+ * revision as a delta adds one patch to apply when restoring it and every
+ * older revision up to the previous complete snapshot. A patch application is
+ * counted as hopCost bytes, multiplied by how often the revision was
+ * restored. Delta size is compared with the complete snapshot compressed
+ * the same way.
+ * 
+ * Revisions restored at least hotAccessCount times are stored both as delta
+ * and complete copy. Chain limits of {@link SVSKeyframePolicy} still apply.
+ * 
+ * @author wax
+ * 
+ */
+public class SVSCostStoragePolicy extends SVSKeyframePolicy {
+
+	/**
+	 * 
+	 */
+	private static final long serialVersionUID = -2369184532089617412L;
+
+	private int hopCost;
+
+	private int hotAccessCount;
+
+	public SVSCostStoragePolicy() {
+		this(16, 0);
+	}
+
+	/**
+	 * @param hopCost
+	 *            cost of a patch application, in bytes
+	 * @param hotAccessCount
+	 *            restores needed to keep both delta and complete copy, 0 to
+	 *            disable
+	 */
+	public SVSCostStoragePolicy(int hopCost, int hotAccessCount) {
+		this.hopCost = hopCost;
+		this.hotAccessCount = hotAccessCount;
+	}
+
+	@Override
+	public SVSStorage choose(SVSStorageCandidate candidate) {
+		if (hotAccessCount > 0
+				&& candidate.getAccessCount() >= hotAccessCount) {
+			return SVSStorage.BOTH;
+		}
+
+		long restoreCost = (long) (candidate.getChainLength() + 1) * hopCost
+				* (1 + candidate.getAccessCount());
+		if (candidate.getDeltaSize() + restoreCost < candidate
+				.getCompressedCompleteSize()) {
+			return SVSStorage.DELTA;
+		}
+		return SVSStorage.COMPLETE;
+	}
+
+	public int getHopCost() {
+		return hopCost;
+	}
+
+	public void setHopCost(int hopCost) {
+		this.hopCost = hopCost;
+	}
+
+	public int getHotAccessCount() {
+		return hotAccessCount;
+	}
+
+	public void setHotAccessCount(int hotAccessCount) {
+		this.hotAccessCount = hotAccessCount;
+	}
+
+}
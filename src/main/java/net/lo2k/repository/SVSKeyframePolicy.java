@@ -0,0 +1,101 @@
+/*
+ * Copyright 2011 Jrme Wax <jerome.wax@lo2k.net>
+ * http://www.lo2k.net
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.lo2k.repository;
+
+/**
+ * decide when a previous revision must be kept as a complete snapshot
+ * (keyframe) instead of being converted to a delta. It bounds the number of
+ * patches to apply when restoring an old revision.
+ * 
+ * A limit set to 0 is disabled. Out of limits, a delta is kept when it is
+ * smaller than the complete snapshot.
+ * 
+ * @author wax
+ * 
+ */
+public class SVSKeyframePolicy implements SVSStoragePolicy {
+
+	/**
+	 * 
+	 */
+	private static final long serialVersionUID = 2810274512397651021L;
+
+	private int maxChainLength;
+
+	private int maxDeltaBytes;
+
+	public SVSKeyframePolicy() {
+		this(0, 0);
+	}
+
+	/**
+	 * @param maxChainLength
+	 *            keep a keyframe every maxChainLength revisions
+	 * @param maxDeltaBytes
+	 *            keep a keyframe when deltas since last keyframe are bigger
+	 *            than maxDeltaBytes
+	 */
+	public SVSKeyframePolicy(int maxChainLength, int maxDeltaBytes) {
+		this.maxChainLength = maxChainLength;
+		this.maxDeltaBytes = maxDeltaBytes;
+	}
+
+	/**
+	 * @param chainLength
+	 *            number of deltas stored since last complete snapshot
+	 * @param deltaBytes
+	 *            size of deltas stored since last complete snapshot
+	 * @return true if next previous revision must stay complete
+	 */
+	public boolean isKeyframeNeeded(int chainLength, int deltaBytes) {
+		if (maxChainLength > 0 && chainLength >= maxChainLength) {
+			return true;
+		}
+		return maxDeltaBytes > 0 && deltaBytes >= maxDeltaBytes;
+	}
+
+	@Override
+	public boolean isCompleteRequired(int chainLength, int chainDeltaBytes) {
+		return isKeyframeNeeded(chainLength, chainDeltaBytes);
+	}
+
+	@Override
+	public SVSStorage choose(SVSStorageCandidate candidate) {
+		if (candidate.getDeltaSize() < candidate.getCompleteSize()) {
+			return SVSStorage.DELTA;
+		}
+		return SVSStorage.COMPLETE;
+	}
+
+	public int getMaxChainLength() {
+		return maxChainLength;
+	}
+
+	public void setMaxChainLength(int maxChainLength) {
+		this.maxChainLength = maxChainLength;
+	}
+
+	public int getMaxDeltaBytes() {
+		return maxDeltaBytes;
+	}
+
+	public void setMaxDeltaBytes(int maxDeltaBytes) {
+		this.maxDeltaBytes = maxDeltaBytes;
+	}
+
+}
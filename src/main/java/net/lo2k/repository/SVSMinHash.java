@@ -0,0 +1,94 @@
+/*
+ * Copyright 2011 Jrme Wax <jerome.wax@lo2k.net>
+ * http://www.lo2k.net
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.lo2k.repository;
+
+/**
+ * MinHash sketch of a serialized revision, to estimate how similar two
+ * revisions are without diffing them. Text is cut in overlapping shingles of
+ * SHINGLE chars, sketch keeps the minimum hash of shingles for SIZE hash
+ * functions. Ratio of equal minimums estimates the Jaccard similarity of
+ * shingle sets.
+ * 
+ * @author wax
+ * 
+ */
+public class SVSMinHash {
+
+	public static final int SIZE = 64;
+
+	private static final int SHINGLE = 8;
+
+	private static final int[] SEEDS = new int[SIZE];
+	static {
+		int seed = 0x2545F491;
+		for (int i = 0; i < SIZE; i++) {
+			// xorshift, odd seeds
+			seed ^= seed << 13;
+			seed ^= seed >>> 17;
+			seed ^= seed << 5;
+			SEEDS[i] = seed | 1;
+		}
+	}
+
+	/**
+	 * compute sketch of a text
+	 * 
+	 * @param text
+	 * @return
+	 */
+	public static int[] sketch(String text) {
+		int[] mins = new int[SIZE];
+		for (int i = 0; i < SIZE; i++) {
+			mins[i] = -1; // unsigned max
+		}
+
+		int last = Math.max(text.length() - SHINGLE, 0);
+		for (int start = 0; start <= last; start++) {
+			int h = 0;
+			int end = Math.min(start + SHINGLE, text.length());
+			for (int i = start; i < end; i++) {
+				h = h * 31 + text.charAt(i);
+			}
+			for (int i = 0; i < SIZE; i++) {
+				int v = h * SEEDS[i];
+				v ^= v >>> 16;
+				// unsigned compare
+				if (v + Integer.MIN_VALUE < mins[i] + Integer.MIN_VALUE) {
+					mins[i] = v;
+				}
+			}
+		}
+		return mins;
+	}
+
+	/**
+	 * @param sketch1
+	 * @param sketch2
+	 * @return estimated similarity, from 0 to 1
+	 */
+	public static double similarity(int[] sketch1, int[] sketch2) {
+		int equal = 0;
+		for (int i = 0; i < SIZE; i++) {
+			if (sketch1[i] == sketch2[i]) {
+				equal++;
+			}
+		}
+		return (double) equal / SIZE;
+	}
+
+}
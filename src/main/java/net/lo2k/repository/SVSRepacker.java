@@ -0,0 +1,178 @@
+/*
+ * Copyright 2011 Jrme Wax <jerome.wax@lo2k.net>
+ * http://www.lo2k.net
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.lo2k.repository;
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+
+import net.lo2k.patcher.SVSDiffBudgetException;
+import net.lo2k.patcher.SVSPatch;
+import net.lo2k.patcher.SVSPatcher;
+import net.lo2k.repository.snapshot.SVSCompleteSnapshot;
+import net.lo2k.repository.snapshot.SVSDeltaSnapshot;
+import net.lo2k.repository.snapshot.SVSSnapshot;
+import net.lo2k.repository.snapshot.SVSSnapshotRepository;
+import net.lo2k.repository.snapshot.SVSSnapshotResolver;
+import net.lo2k.zip.Compression;
+
+/**
+ * rebuild storage of a whole history, like git gc --aggressive. Revisions
+ * are visited from newest to oldest, each one is diffed against every
+ * revision of a window of newer ones and the smallest delta is kept, so runs
+ * of tiny deltas collapse into direct deltas. Deltas are compressed at
+ * maximum level. Storage policy decides whether a revision stays complete,
+ * like when a snapshot is made, and it stays complete when every base would
+ * exceed max chain length, which re-balances keyframes.
+ * 
+ * New snapshots only refer to revisions of the repacked history, and newest
+ * one is always complete.
+ * 
+ * @author wax
+ * 
+ * @param <T>
+ */
+public class SVSRepacker<T extends Serializable> {
+
+	private static final int CACHE_SIZE = 4 * 1024 * 1024;
+
+	private final SVSSnapshotRepository<T> source;
+
+	private final int window;
+
+	private final int maxChainLength;
+
+	private final SVSStoragePolicy storagePolicy;
+
+	/**
+	 * @param source
+	 *            repository to read, must not be modified while repacking
+	 * @param window
+	 *            number of newer revisions tried as delta base
+	 * @param maxChainLength
+	 *            max number of patches to restore a revision, 0 for no limit
+	 * @param storagePolicy
+	 *            decide whether a revision stays complete
+	 */
+	public SVSRepacker(SVSSnapshotRepository<T> source, int window,
+			int maxChainLength, SVSStoragePolicy storagePolicy) {
+		this.source = source;
+		this.window = window;
+		this.maxChainLength = maxChainLength;
+		this.storagePolicy = storagePolicy;
+	}
+
+	/**
+	 * compute new storage of revisions
+	 * 
+	 * @param revisions
+	 *            history, oldest first
+	 * @return new snapshot of each revision
+	 */
+	public HashMap<String, SVSSnapshot<T>> repack(List<String> revisions) {
+		// distinct revisions, newest first
+		LinkedHashSet<String> order = new LinkedHashSet<String>();
+		for (int i = revisions.size() - 1; i >= 0; i--) {
+			order.add(revisions.get(i));
+		}
+
+		// older revision is restored from newer one just restored
+		source.enableCache(CACHE_SIZE);
+		SVSSnapshotResolver<T> resolver = new SVSSnapshotResolver<T>(source);
+		SVSPatcher<T> patcher = new SVSPatcher<T>(source.getCodec(), source
+				.getDeltaEngine(), source.getDictionaries(),
+				Compression.DEFLATE_BEST);
+
+		HashMap<String, SVSSnapshot<T>> repacked = new HashMap<String, SVSSnapshot<T>>();
+		HashMap<String, Integer> depths = new HashMap<String, Integer>();
+		// size of deltas between a revision and its complete snapshot
+		HashMap<String, Integer> chainBytes = new HashMap<String, Integer>();
+		LinkedList<String> bases = new LinkedList<String>();
+		HashMap<String, String> baseTexts = new HashMap<String, String>();
+
+		for (String rev : order) {
+			SVSSnapshot<T> previous = source.get(rev);
+			String text = resolver.getString(previous);
+
+			SVSSnapshot<T> best = null;
+			String bestBase = null;
+			int bestDepth = 0;
+			for (String base : bases) {
+				int depth = depths.get(base) + 1;
+				if (maxChainLength > 0 && depth > maxChainLength
+						|| storagePolicy.isCompleteRequired(depth - 1,
+								chainBytes.get(base))) {
+					continue;
+				}
+				SVSPatch<T> patch;
+				try {
+					patch = patcher.makeDeltaForStrings(baseTexts.get(base),
+							text);
+				} catch (SVSDiffBudgetException e) {
+					continue;
+				}
+				if (best == null || patch.getSize() < best.getSize()) {
+					best = new SVSDeltaSnapshot<T>(patch, base, source);
+					bestBase = base;
+					bestDepth = depth;
+				}
+			}
+
+			SVSStorage storage = SVSStorage.COMPLETE;
+			if (best != null) {
+				storage = storagePolicy.choose(new SVSStorageCandidate(rev,
+						text.length(), best.getSize(), bestDepth - 1,
+						chainBytes.get(bestBase), source.getAccessCount(rev),
+						text, Compression.DEFLATE_BEST));
+			}
+			// complete copies aren't repacked, BOTH keeps a complete one
+			if (storage != SVSStorage.DELTA) {
+				if (previous instanceof SVSCompleteSnapshot<?>) {
+					best = previous;
+				} else {
+					best = new SVSCompleteSnapshot<T>(patcher
+							.getObjectFromString(text), text, source);
+					best.releaseString();
+				}
+				bestDepth = 0;
+				bestBase = null;
+			}
+			best.setRevisionNumber(rev);
+			best.setCreatedAt(previous.getCreatedAt());
+			repacked.put(rev, best);
+			depths.put(rev, bestDepth);
+			if (bestBase == null) {
+				chainBytes.put(rev, 0);
+			} else {
+				chainBytes.put(rev, chainBytes.get(bestBase) + best.getSize());
+			}
+
+			bases.addFirst(rev);
+			baseTexts.put(rev, text);
+			if (bases.size() > window) {
+				baseTexts.remove(bases.removeLast());
+			}
+		}
+
+		source.disableCache();
+		return repacked;
+	}
+
+}
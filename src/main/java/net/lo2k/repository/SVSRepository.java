@@ -41,6 +41,31 @@ public interface SVSRepository<T extends Serializable> {
 	 */
 	String makeSnapshot(T newVersion);
 
+	/**
+	 * make a new snapshot in background. Object is serialized and hashed
+	 * before returning, it can be modified afterwards. Blocks when too many
+	 * snapshots are pending.
+	 * 
+	 * @param newVersion
+	 * @return revision number, can be restored at once
+	 */
+	String makeSnapshotAsync(T newVersion);
+
+	/**
+	 * make a snapshot of each version, in list order. Versions are serialized
+	 * and diffed in parallel.
+	 * 
+	 * @param versions
+	 * @return revision numbers, in list order
+	 */
+	List<String> makeSnapshots(List<T> versions);
+
+	/**
+	 * wait for pending snapshots made by {@link #makeSnapshotAsync(Object)}
+	 * to be stored in history
+	 */
+	void flush();
+
 	/**
 	 * restored a specified snapshot
 	 * 
@@ -93,6 +118,15 @@ public interface SVSRepository<T extends Serializable> {
 	 */
 	String getRevisionBefore(Date d);
 
+	/**
+	 * get revision numbers created between these dates (included)
+	 * 
+	 * @param from
+	 * @param to
+	 * @return
+	 */
+	List<String> getRevisionsBetween(Date from, Date to);
+
 	/**
 	 * restore object juste before this date
 	 * 
@@ -23,17 +23,37 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 
+import net.lo2k.patcher.SVSCodec;
+import net.lo2k.patcher.SVSDiffBudgetException;
+import net.lo2k.patcher.SVSDiffEngine;
+import net.lo2k.patcher.SVSExactDeltaEngine;
 import net.lo2k.patcher.SVSPatch;
 import net.lo2k.patcher.SVSPatcher;
+import net.lo2k.patcher.SVSYamlCodec;
 import net.lo2k.repository.snapshot.SVSCompleteSnapshot;
+import net.lo2k.repository.snapshot.SVSDeltaSnapshot;
 import net.lo2k.repository.snapshot.SVSSnapshot;
 import net.lo2k.repository.snapshot.SVSSnapshotRepository;
+import net.lo2k.repository.snapshot.SVSSnapshotResolver;
 
 import org.ho.yaml.YamlDecoder;
 import org.ho.yaml.YamlEncoder;
@@ -51,21 +71,300 @@ public class SVSRepositoryImpl<T extends Serializable> implements
 
 	SVSSnapshotRepository<T> repository;
 
+	SVSStoragePolicy storagePolicy;
+
+	// deltas stored since latest complete snapshot
+	int chainLength;
+
+	int chainDeltaBytes;
+
+	// rebase older deltas on new heads for logarithmic restore depth
+	boolean skipDeltas;
+
+	// recent revisions compared to find delta base, 0 for next revision only
+	int similarityWindow;
+
+	// sketches of revisions in similarity window, never saved
+	transient LinkedHashMap<String, int[]> sketches;
+
+	// versions serialized and diffed together by makeSnapshots
+	private static final int BATCH_SIZE = 1024;
+
+	// max snapshots waiting for background commit
+	private static final int MAX_PENDING = 16;
+
+	// background commit of async snapshots, never saved
+	transient ExecutorService commitExecutor;
+
+	transient Semaphore commitPermits;
+
+	// serialized form of revisions waiting for commit
+	transient ConcurrentHashMap<String, String> pending;
+
+	transient volatile RuntimeException commitFailure;
+
+	// rebuilt from history when needed, never saved
+	transient SVSTimeIndex timeIndex;
+
 	public SVSRepositoryImpl() {
+		this(new SVSYamlCodec());
+	}
+
+	/**
+	 * @param codec
+	 *            serialization used to hash, diff and patch versions. Can't be
+	 *            changed once snapshots are made.
+	 */
+	public SVSRepositoryImpl(SVSCodec codec) {
+		this(codec, new SVSExactDeltaEngine());
+	}
+
+	/**
+	 * @param codec
+	 *            serialization used to hash, diff and patch versions. Can't be
+	 *            changed once snapshots are made.
+	 * @param deltaEngine
+	 *            engine used to make delta snapshots
+	 */
+	public SVSRepositoryImpl(SVSCodec codec, SVSDiffEngine deltaEngine) {
 		snapshots = new LinkedList<String>();
-		repository = new SVSSnapshotRepository<T>();
+		repository = new SVSSnapshotRepository<T>(codec, deltaEngine);
+		storagePolicy = new SVSKeyframePolicy();
 	}
 
 	public void appendToHistory(SVSSnapshot<T> snapshot) {
 		snapshots.add(snapshot.getRevisionNumber());
 		repository.put(snapshot);
+		if (timeIndex != null) {
+			timeIndex.add(snapshot.getRevisionNumber(), snapshot.getCreatedAt());
+		}
+	}
+
+	/**
+	 * get creation date index, rebuilt if history has been changed
+	 * 
+	 * @return
+	 */
+	SVSTimeIndex getTimeIndex() {
+		if (timeIndex == null || timeIndex.size() != snapshots.size()) {
+			timeIndex = new SVSTimeIndex();
+			for (String str : snapshots) {
+				timeIndex.add(str, repository.get(str).getCreatedAt());
+			}
+		}
+		return timeIndex;
 	}
 
 	@Override
 	public String makeSnapshot(T toSnap) {
-		SVSSnapshot<T> newSnapshot = new SVSCompleteSnapshot<T>(toSnap,
-				repository);
+		// keep history in call order
+		flush();
+		// object is serialized only once, for hash, size and diff
+		SVSPatcher<T> patcher = repository.getPatcher();
+		String serialized = patcher.getStringFor(toSnap);
+		// head keeps a private copy, caller may change its object
+		return commitSnapshot(patcher.getObjectFromString(serialized),
+				serialized);
+	}
+
+	@Override
+	public String makeSnapshotAsync(T toSnap) {
+		final SVSPatcher<T> patcher = repository.getPatcher();
+		final String serialized = patcher.getStringFor(toSnap);
+		final String revision = patcher.getHashForString(serialized);
+
+		startCommitExecutor();
+		// back-pressure: wait for a free slot
+		commitPermits.acquireUninterruptibly();
+		pending.put(revision, serialized);
+		commitExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					// object may have changed since, use serialized form
+					commitSnapshot(patcher.getObjectFromString(serialized),
+							serialized);
+				} catch (RuntimeException e) {
+					commitFailure = e;
+				} finally {
+					// revision is in history now, or will never be
+					pending.remove(revision);
+					commitPermits.release();
+				}
+			}
+		});
+		return revision;
+	}
+
+	@Override
+	public void flush() {
+		Semaphore permits = commitPermits;
+		if (permits != null) {
+			permits.acquireUninterruptibly(MAX_PENDING);
+			permits.release(MAX_PENDING);
+		}
+
+		RuntimeException failure = commitFailure;
+		if (failure != null) {
+			commitFailure = null;
+			throw new IllegalStateException("asynchronous snapshot failed",
+					failure);
+		}
+	}
+
+	private synchronized void startCommitExecutor() {
+		if (commitExecutor == null) {
+			pending = new ConcurrentHashMap<String, String>();
+			commitPermits = new Semaphore(MAX_PENDING);
+			commitExecutor = Executors
+					.newSingleThreadExecutor(new ThreadFactory() {
+						@Override
+						public Thread newThread(Runnable runnable) {
+							Thread thread = new Thread(runnable, "svs-commit");
+							// don't prevent jvm exit
+							thread.setDaemon(true);
+							return thread;
+						}
+					});
+		}
+	}
+
+	@Override
+	public List<String> makeSnapshots(List<T> versions) {
+		flush();
+		List<String> revisions = new ArrayList<String>(versions.size());
+		ForkJoinPool pool = new ForkJoinPool();
+		try {
+			// bounded batches, serialized forms are kept until commit
+			for (int from = 0; from < versions.size(); from += BATCH_SIZE) {
+				int to = Math.min(versions.size(), from + BATCH_SIZE);
+				revisions.addAll(makeSnapshots(versions.subList(from, to),
+						pool));
+			}
+		} finally {
+			pool.shutdown();
+		}
+		return revisions;
+	}
+
+	private List<String> makeSnapshots(final List<T> versions,
+			ForkJoinPool pool) {
+		final SVSPatcher<T> patcher = repository.getPatcher();
+		final int count = versions.size();
+
+		// texts[0] is previous head, texts[i + 1] is versions[i]
+		final String[] texts = new String[count + 1];
+		final String[] revisions = new String[count + 1];
+		// private copies of versions, callers may change them
+		final List<T> copies = new ArrayList<T>(count);
+		List<Callable<Object>> tasks = new ArrayList<Callable<Object>>(count);
+		for (int i = 0; i < count; i++) {
+			copies.add(null);
+			final int index = i;
+			tasks.add(new Callable<Object>() {
+				@Override
+				public Object call() {
+					texts[index + 1] = patcher.getStringFor(versions.get(index));
+					revisions[index + 1] = patcher
+							.getHashForString(texts[index + 1]);
+					copies.set(index, patcher
+							.getObjectFromString(texts[index + 1]));
+					return null;
+				}
+			});
+		}
+		invokeAll(pool, tasks);
+
+		synchronized (this) {
+			if (!snapshots.isEmpty()) {
+				revisions[0] = snapshots.getLast();
+				texts[0] = new SVSSnapshotResolver<T>(repository)
+						.getString(repository.get(revisions[0]));
+			}
+
+			// reverse deltas of adjacent versions, used when previous
+			// revision is stored as delta of the next one
+			final List<SVSPatch<T>> deltas = new ArrayList<SVSPatch<T>>(count);
+			tasks.clear();
+			for (int i = 0; i < count; i++) {
+				deltas.add(null);
+				final int index = i;
+				tasks.add(new Callable<Object>() {
+					@Override
+					public Object call() {
+						if (texts[index] != null
+								&& !revisions[index]
+										.equals(revisions[index + 1])) {
+							try {
+								deltas.set(index, patcher.makeDeltaForStrings(
+										texts[index + 1], texts[index]));
+							} catch (SVSDiffBudgetException e) {
+								// decided again at commit
+							}
+						}
+						return null;
+					}
+				});
+			}
+			invokeAll(pool, tasks);
+
+			for (int i = 0; i < count; i++) {
+				commitSnapshot(new SVSCompleteSnapshot<T>(copies.get(i),
+						texts[i + 1], revisions[i + 1]), texts[i + 1], deltas
+						.get(i));
+				// release text once committed
+				texts[i] = null;
+			}
+		}
+		return Arrays.asList(revisions).subList(1, count + 1);
+	}
+
+	private static void invokeAll(ForkJoinPool pool,
+			List<Callable<Object>> tasks) {
+		try {
+			for (Future<Object> future : pool.invokeAll(tasks)) {
+				future.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException(e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+
+	/**
+	 * append a serialized object to history, and store previous revision
+	 * 
+	 * @param toSnap
+	 *            private copy of object, kept by head
+	 * @param serialized
+	 * @return
+	 */
+	private synchronized String commitSnapshot(T toSnap, String serialized) {
+		return commitSnapshot(new SVSCompleteSnapshot<T>(toSnap, serialized,
+				repository), serialized, null);
+	}
+
+	/**
+	 * append a snapshot to history, and store previous revision
+	 * 
+	 * @param newSnapshot
+	 * @param serialized
+	 * @param delta
+	 *            patch from new snapshot to previous head, null if not
+	 *            computed yet
+	 * @return
+	 */
+	private synchronized String commitSnapshot(SVSSnapshot<T> newSnapshot,
+			String serialized, SVSPatch<T> delta) {
 		appendToHistory(newSnapshot);
+		if (similarityWindow > 0) {
+			addSketch(newSnapshot.getRevisionNumber(), serialized);
+		}
 
 		// history is never empty
 		if (snapshots.size() > 1) {
@@ -73,47 +372,365 @@ public class SVSRepositoryImpl<T extends Serializable> implements
 			// fetch previous snap
 			SVSSnapshot<T> previousSnap = repository.get(snapshots
 					.get(snapshots.size() - 2));
-			// convert previous entry to "delta snap"
-			SVSSnapshot<T> convertedToSnap = previousSnap
-					.convertToSVSDeltaSnapshot(newSnapshot.getRevisionNumber(),
-							repository);
-
-			// store only convertedToSnap is smaller than completeSnap
-			if (convertedToSnap.getSize() < previousSnap.getSize()) {
-
-				System.out.println("delta: " + convertedToSnap.getSize()
-						+ " | gain: "
-						+ (previousSnap.getSize() - convertedToSnap.getSize()));
-				// store also only if it's not the same as previous
-				if (convertedToSnap.getRevisionNumber() != newSnapshot
-						.getRevisionNumber()) {
-					repository.put(convertedToSnap);
-				}
-			} else {
-				System.out.println("keep complete: " + previousSnap.getSize());
+
+			// same revision as previous, nothing to convert
+			if (previousSnap.getRevisionNumber().equals(
+					newSnapshot.getRevisionNumber())) {
+				return newSnapshot.getRevisionNumber();
+			}
+
+			storePreviousRevision(previousSnap, newSnapshot, delta);
+			if (skipDeltas) {
+				rebaseSkipDeltas(newSnapshot.getRevisionNumber());
 			}
 		}
 
 		return newSnapshot.getRevisionNumber();
 	}
 
+	/**
+	 * store previous head as delta, complete snapshot or both, according to
+	 * storage policy
+	 * 
+	 * @param previousSnap
+	 * @param newSnapshot
+	 * @param delta
+	 *            patch from new snapshot to previous one, null if not
+	 *            computed yet
+	 */
+	private void storePreviousRevision(SVSSnapshot<T> previousSnap,
+			SVSSnapshot<T> newSnapshot, SVSPatch<T> delta) {
+		// keep previous entry as keyframe to bound delta chain
+		if (storagePolicy.isCompleteRequired(chainLength, chainDeltaBytes)) {
+			keepComplete(previousSnap);
+			return;
+		}
+
+		// base of delta: next revision, or a more similar recent one
+		String baseRev = newSnapshot.getRevisionNumber();
+		int[] baseChain = { 0, 0 };
+		if (similarityWindow > 0) {
+			String similarRev = findSimilarBase(previousSnap
+					.getRevisionNumber(), baseRev);
+			int[] similarChain = similarRev == null ? null : getChain(
+					similarRev, previousSnap.getRevisionNumber());
+			// chain limits apply to the whole chain through the base
+			if (similarChain != null
+					&& !storagePolicy.isCompleteRequired(chainLength
+							+ similarChain[0], chainDeltaBytes
+							+ similarChain[1])) {
+				baseRev = similarRev;
+				baseChain = similarChain;
+			}
+		}
+
+		// convert previous entry to "delta snap"
+		SVSSnapshot<T> convertedToSnap;
+		try {
+			if (delta != null
+					&& baseRev.equals(newSnapshot.getRevisionNumber())) {
+				convertedToSnap = previousSnap.convertToSVSDeltaSnapshot(
+						baseRev, delta);
+			} else {
+				convertedToSnap = previousSnap.convertToSVSDeltaSnapshot(
+						baseRev, repository);
+			}
+		} catch (SVSDiffBudgetException e) {
+			keepComplete(previousSnap);
+			return;
+		}
+
+		// cost policies compare delta with compressed complete snapshot
+		String text = null;
+		if (previousSnap instanceof SVSCompleteSnapshot<?>) {
+			text = ((SVSCompleteSnapshot<T>) previousSnap).getString(repository
+					.getPatcher());
+		}
+		SVSStorage storage = storagePolicy.choose(new SVSStorageCandidate(
+				previousSnap.getRevisionNumber(), previousSnap.getSize(),
+				convertedToSnap.getSize(), chainLength + baseChain[0],
+				chainDeltaBytes + baseChain[1], repository
+						.getAccessCount(previousSnap.getRevisionNumber()),
+				text, repository.getCompression()));
+
+		if (storage == SVSStorage.BOTH
+				&& previousSnap instanceof SVSCompleteSnapshot<?>) {
+			// complete copy ends delta chain of older revisions
+			repository
+					.putCompleteCopy((SVSCompleteSnapshot<T>) previousSnap);
+			repository.put(convertedToSnap);
+			keepComplete(previousSnap);
+		} else if (storage != SVSStorage.COMPLETE) {
+
+			System.out.println("delta: " + convertedToSnap.getSize()
+					+ " | gain: "
+					+ (previousSnap.getSize() - convertedToSnap.getSize()));
+			repository.put(convertedToSnap);
+			chainLength += 1 + baseChain[0];
+			chainDeltaBytes += convertedToSnap.getSize() + baseChain[1];
+		} else {
+			System.out.println("keep complete: " + previousSnap.getSize());
+			keepComplete(previousSnap);
+		}
+	}
+
+	/**
+	 * keep previous head as complete snapshot, ending the delta chain
+	 * 
+	 * @param previousSnap
+	 */
+	private void keepComplete(SVSSnapshot<T> previousSnap) {
+		if (previousSnap instanceof SVSCompleteSnapshot<?>) {
+			// caller may have changed its object since snapshot
+			((SVSCompleteSnapshot<T>) previousSnap).copyObject(repository
+					.getPatcher());
+		}
+		previousSnap.releaseString();
+		chainLength = 0;
+		chainDeltaBytes = 0;
+	}
+
+	/**
+	 * keep sketch of a new revision, sketches out of window are dropped
+	 * 
+	 * @param revision
+	 * @param serialized
+	 */
+	private void addSketch(String revision, String serialized) {
+		if (sketches == null) {
+			sketches = new LinkedHashMap<String, int[]>();
+		}
+		sketches.remove(revision);
+		sketches.put(revision, SVSMinHash.sketch(serialized));
+		while (sketches.size() > similarityWindow + 1) {
+			sketches.remove(sketches.keySet().iterator().next());
+		}
+	}
+
+	/**
+	 * find most similar revision to previous head within similarity window
+	 * 
+	 * @param previousRev
+	 * @param headRev
+	 * @return most similar revision, null if head is the best base
+	 */
+	private String findSimilarBase(String previousRev, String headRev) {
+		int[] sketch = sketches == null ? null : sketches.get(previousRev);
+		if (sketch == null) {
+			return null;
+		}
+
+		int[] headSketch = sketches.get(headRev);
+		double best = headSketch == null ? 0 : SVSMinHash.similarity(sketch,
+				headSketch);
+		String bestRev = null;
+		for (String rev : sketches.keySet()) {
+			if (rev.equals(previousRev) || rev.equals(headRev)) {
+				continue;
+			}
+			double similarity = SVSMinHash.similarity(sketch, sketches
+					.get(rev));
+			if (similarity > best) {
+				best = similarity;
+				bestRev = rev;
+			}
+		}
+		return bestRev;
+	}
+
+	/**
+	 * walk delta chain of a revision
+	 * 
+	 * @param revision
+	 * @param excludedRev
+	 *            revision which must not be on the chain
+	 * @return number of deltas and their size, null if chain passes through
+	 *         excludedRev
+	 */
+	private int[] getChain(String revision, String excludedRev) {
+		int[] chain = { 0, 0 };
+		SVSSnapshot<T> snapshot = repository.get(revision);
+		while (snapshot instanceof SVSDeltaSnapshot<?>) {
+			String rev = snapshot.getRevisionNumber();
+			if (rev.equals(excludedRev)
+					|| repository.getCompleteCopy(rev) != null) {
+				break;
+			}
+			chain[0]++;
+			chain[1] += snapshot.getSize();
+			snapshot = repository.get(((SVSDeltaSnapshot<T>) snapshot)
+					.getFutureRev());
+		}
+		if (snapshot.getRevisionNumber().equals(excludedRev)) {
+			return null;
+		}
+		return chain;
+	}
+
+	/**
+	 * skip-deltas: head at position n becomes base of deltas at positions n -
+	 * 2^k, for each 2^k dividing n. Revision at position i finally deltas
+	 * against i + lowest bit of i, so restore needs O(log n) patches, and
+	 * each revision is rebased twice on average.
+	 * 
+	 * @param headRev
+	 */
+	private void rebaseSkipDeltas(String headRev) {
+		int n = snapshots.size() - 1;
+		for (int step = 2; step <= n && n % step == 0; step <<= 1) {
+			SVSSnapshot<T> snapshot = repository.get(snapshots.get(n - step));
+
+			// complete snapshots chosen by policy stay complete
+			if (!(snapshot instanceof SVSDeltaSnapshot<?>)
+					|| snapshot.getRevisionNumber().equals(headRev)
+					|| ((SVSDeltaSnapshot<T>) snapshot).getFutureRev().equals(
+							headRev)) {
+				continue;
+			}
+			try {
+				repository.put(snapshot.convertToSVSDeltaSnapshot(headRev,
+						repository));
+			} catch (SVSDiffBudgetException e) {
+				// keep current base
+			}
+		}
+	}
+
+	/**
+	 * rebuild storage of whole history on executor, see {@link SVSRepacker}.
+	 * Revisions can be restored and made meanwhile, new storage is swapped in
+	 * at once at the end.
+	 * 
+	 * @param executor
+	 * @param window
+	 *            number of newer revisions tried as delta base
+	 * @param maxChainLength
+	 *            max number of patches to restore a revision, 0 for no limit
+	 * @return repository size after repack
+	 */
+	public Future<Integer> repack(ExecutorService executor, final int window,
+			final int maxChainLength) {
+		final List<String> revisions;
+		final SVSSnapshotRepository<T> source;
+		final SVSStoragePolicy policy;
+		synchronized (this) {
+			revisions = new ArrayList<String>(snapshots);
+			source = repository.copy();
+			policy = storagePolicy;
+		}
+
+		return executor.submit(new Callable<Integer>() {
+			@Override
+			public Integer call() {
+				HashMap<String, SVSSnapshot<T>> repacked = new SVSRepacker<T>(
+						source, window, maxChainLength, policy)
+						.repack(revisions);
+
+				synchronized (SVSRepositoryImpl.this) {
+					// revisions made meanwhile may refer to repacked ones,
+					// repacked ones never refer to them
+					HashMap<String, SVSSnapshot<T>> history = new HashMap<String, SVSSnapshot<T>>(
+							repository.getHistory());
+					history.putAll(repacked);
+					repository.replaceHistory(history);
+					updateChain();
+					return repository.getSize();
+				}
+			}
+		});
+	}
+
+	/**
+	 * count deltas stored since latest complete snapshot
+	 */
+	private void updateChain() {
+		chainLength = 0;
+		chainDeltaBytes = 0;
+		for (int i = snapshots.size() - 2; i >= 0; i--) {
+			SVSSnapshot<T> snapshot = repository.get(snapshots.get(i));
+			if (!(snapshot instanceof SVSDeltaSnapshot<?>)
+					|| repository.getCompleteCopy(snapshots.get(i)) != null) {
+				break;
+			}
+			chainLength++;
+			chainDeltaBytes += snapshot.getSize();
+		}
+	}
+
+	/**
+	 * keep recently restored revisions in memory (not saved)
+	 * 
+	 * @param maxSize
+	 *            max total length of cached serialized revisions
+	 */
+	public void enableCache(int maxSize) {
+		repository.enableCache(maxSize);
+	}
+
+	public void disableCache() {
+		repository.disableCache();
+	}
+
+	/**
+	 * train a new compression dictionary from most recent revisions, used to
+	 * compress next deltas. Previous dictionaries are kept to decode older
+	 * deltas.
+	 * 
+	 * @param samples
+	 *            number of revisions to learn from
+	 */
+	public synchronized void trainDictionary(int samples) {
+		SVSSnapshotResolver<T> resolver = new SVSSnapshotResolver<T>(
+				repository);
+		List<String> texts = new ArrayList<String>();
+		for (int i = Math.max(snapshots.size() - samples, 0); i < snapshots
+				.size(); i++) {
+			texts.add(resolver.getString(repository.get(snapshots.get(i))));
+		}
+		repository.trainDictionary(texts);
+	}
+
 	@Override
 	public T restoreSnapShot(String snapshotHash) {
-		return repository.get(snapshotHash).getObject(repository);
+		// pending revision, not in history yet
+		ConcurrentHashMap<String, String> waiting = pending;
+		String serialized = waiting == null ? null : waiting.get(snapshotHash);
+		if (serialized != null) {
+			return repository.getPatcher().getObjectFromString(serialized);
+		}
+
+		// not pending: committed, history is written by commit thread
+		synchronized (this) {
+			repository.recordAccess(snapshotHash);
+			return repository.get(snapshotHash).getObject(repository);
+		}
 	}
 
+	/**
+	 * @return copy of history, pending snapshots included
+	 */
 	@Override
 	public List<String> getHistory() {
-		return snapshots;
+		flush();
+		synchronized (this) {
+			return new ArrayList<String>(snapshots);
+		}
 	}
 
 	@Override
-	public int getSize() {
+	public synchronized int getSize() {
 		return repository.getSize();
 	}
 
 	@Override
 	public void saveToFile(File f) {
+		flush();
+		synchronized (this) {
+			writeToFile(f);
+		}
+	}
+
+	private void writeToFile(File f) {
 		FileOutputStream sw = null;
 		try {
 			sw = new FileOutputStream(f);
@@ -164,6 +781,7 @@ public class SVSRepositoryImpl<T extends Serializable> implements
 
 	public void setSnapshots(LinkedList<String> snapshots) {
 		this.snapshots = snapshots;
+		timeIndex = null;
 	}
 
 	public SVSSnapshotRepository<T> getRepository() {
@@ -172,15 +790,95 @@ public class SVSRepositoryImpl<T extends Serializable> implements
 
 	public void setRepository(SVSSnapshotRepository<T> repository) {
 		this.repository = repository;
+		timeIndex = null;
+	}
+
+	public SVSCodec getCodec() {
+		return repository.getCodec();
+	}
+
+	public SVSStoragePolicy getStoragePolicy() {
+		return storagePolicy;
+	}
+
+	/**
+	 * @param storagePolicy
+	 *            decide how previous revisions are stored, a
+	 *            {@link SVSKeyframePolicy} by default
+	 */
+	public void setStoragePolicy(SVSStoragePolicy storagePolicy) {
+		this.storagePolicy = storagePolicy;
+	}
+
+	/**
+	 * @param keyframePolicy
+	 * @deprecated use {@link #setStoragePolicy(SVSStoragePolicy)}
+	 */
+	@Deprecated
+	public void setKeyframePolicy(SVSKeyframePolicy keyframePolicy) {
+		this.storagePolicy = keyframePolicy;
+	}
+
+	/**
+	 * only for serialization: length and size of delta chain since latest
+	 * complete snapshot, maintained by the repository
+	 **/
+	public int getChainLength() {
+		return chainLength;
+	}
+
+	public void setChainLength(int chainLength) {
+		this.chainLength = chainLength;
+	}
+
+	public int getChainDeltaBytes() {
+		return chainDeltaBytes;
+	}
+
+	public void setChainDeltaBytes(int chainDeltaBytes) {
+		this.chainDeltaBytes = chainDeltaBytes;
+	}
+
+	/** END only for serialization **/
+
+	public boolean isSkipDeltas() {
+		return skipDeltas;
+	}
+
+	/**
+	 * @param skipDeltas
+	 *            true to rebase older deltas on new revisions, so any revision
+	 *            is restored in O(log n) patches
+	 */
+	public void setSkipDeltas(boolean skipDeltas) {
+		this.skipDeltas = skipDeltas;
+	}
+
+	public int getSimilarityWindow() {
+		return similarityWindow;
+	}
+
+	/**
+	 * @param similarityWindow
+	 *            number of recent revisions compared to previous revision to
+	 *            find its delta base, 0 to always use next revision
+	 */
+	public void setSimilarityWindow(int similarityWindow) {
+		this.similarityWindow = similarityWindow;
 	}
 
 	@Override
 	public T applyPatch(SVSPatch<T> patch) {
-		T latestRev = getLatestSnapshot();
-		SVSPatcher<T> p = new SVSPatcher<T>();
-		T newObj = p.patchWith(latestRev, patch);
-		makeSnapshot(newObj);
-		return newObj;
+		flush();
+		// no commit between reading head and patching it
+		synchronized (this) {
+			T latestRev = restoreSnapShot(snapshots.getLast());
+			SVSPatcher<T> p = repository.getPatcher();
+			String patched = p.patchString(p.getStringFor(latestRev), patch);
+			// head keeps its own copy of returned object
+			commitSnapshot(p.getObjectFromString(patched), patched);
+			return p.getObjectFromString(patched);
+		}
 	}
 
 	@Override
@@ -190,30 +888,130 @@ public class SVSRepositoryImpl<T extends Serializable> implements
 
 	@Override
 	public String getLatestRevNumber() {
-		return getHistory().get(getHistory().size() - 1);
+		// pending snapshots are newer
+		flush();
+		synchronized (this) {
+			return snapshots.getLast();
+		}
 	}
 
 	@Override
 	public SVSPatch<T> getSVSPatchBeetween(String rev1, String rev2) {
-		SVSPatcher<T> patcher = new SVSPatcher<T>();
-		SVSPatch<T> patch = patcher.makeSVSPatchFor(restoreSnapShot(rev1),
+		SVSPatch<T> patch = composeSVSPatch(rev1, rev2);
+		if (patch != null) {
+			return patch;
+		}
+
+		SVSPatcher<T> patcher = repository.getPatcher();
+		patch = patcher.makeSVSPatchFor(restoreSnapShot(rev1),
 				restoreSnapShot(rev2));
 		return patch;
 	}
 
-	@Override
-	public String getRevisionBefore(Date d) {
+	/**
+	 * build patch between two revisions from stored deltas, through their
+	 * nearest common base
+	 * 
+	 * @param rev1
+	 * @param rev2
+	 * @return null if revisions are not linked by composable deltas
+	 */
+	private synchronized SVSPatch<T> composeSVSPatch(String rev1, String rev2) {
+		if (rev1.equals(rev2)) {
+			return null;
+		}
+		List<String> path1 = getDeltaPath(rev1);
+		List<String> path2 = getDeltaPath(rev2);
+		if (path1 == null || path2 == null) {
+			return null;
+		}
+
+		int index1 = -1;
+		int index2 = -1;
+		for (int i = 0; i < path1.size() && index2 < 0; i++) {
+			index2 = path2.indexOf(path1.get(i));
+			index1 = i;
+		}
+		if (index2 < 0) {
+			return null;
+		}
 
-		String result = null;
+		SVSPatcher<T> patcher = repository.getPatcher();
+		String base = path1.get(index1);
+		String baseText = new SVSSnapshotResolver<T>(repository)
+				.getString(repository.get(base));
 
-		// history is ordered
-		for (String str : getHistory()) {
-			SVSSnapshot<T> snapshot = repository.get(str);
-			if (snapshot.getCreatedAt().after(d)) { // we are to far
-				return result;
+		// base to rev1, then inverted
+		String text1 = baseText;
+		SVSPatch<T> toRev1 = composeDeltas(path1, index1);
+		List<SVSPatch<T>> patches = new ArrayList<SVSPatch<T>>();
+		if (toRev1 != null) {
+			text1 = patcher.patchString(baseText, toRev1);
+			patches.add(patcher.invertPatch(baseText, toRev1));
+		}
+		// base to rev2
+		SVSPatch<T> toRev2 = composeDeltas(path2, index2);
+		if (toRev2 != null) {
+			patches.add(toRev2);
+		}
+
+		return patcher.makeSVSPatchForDelta(text1, patcher
+				.composePatches(patches));
+	}
+
+	/**
+	 * follow delta chain of a revision while deltas can be composed
+	 * 
+	 * @param revision
+	 * @return revision, then each base until the last one, null if unknown
+	 */
+	private List<String> getDeltaPath(String revision) {
+		List<String> path = new ArrayList<String>();
+		SVSSnapshot<T> snapshot = repository.get(revision);
+		if (snapshot == null) {
+			return null;
+		}
+		path.add(revision);
+		while (snapshot instanceof SVSDeltaSnapshot<?>) {
+			SVSDeltaSnapshot<T> delta = (SVSDeltaSnapshot<T>) snapshot;
+			if (!repository.getPatcher().isComposable(delta.getSVSPatch())
+					|| path.size() > repository.getHistory().size()) {
+				break;
 			}
-			result = str;
+			snapshot = repository.get(delta.getFutureRev());
+			if (snapshot == null) {
+				break;
+			}
+			path.add(delta.getFutureRev());
+		}
+		return path;
+	}
+
+	/**
+	 * compose deltas from base of a path to its first revision
+	 * 
+	 * @param path
+	 * @param baseIndex
+	 *            index of base in path
+	 * @return null if path starts with base
+	 */
+	private SVSPatch<T> composeDeltas(List<String> path, int baseIndex) {
+		if (baseIndex == 0) {
+			return null;
+		}
+		List<SVSPatch<T>> patches = new ArrayList<SVSPatch<T>>(baseIndex);
+		for (int i = baseIndex - 1; i >= 0; i--) {
+			patches.add(((SVSDeltaSnapshot<T>) repository.get(path.get(i)))
+					.getSVSPatch());
 		}
+		return repository.getPatcher().composePatches(patches);
+	}
+
+	@Override
+	public synchronized String getRevisionBefore(Date d) {
+
+		// history is ordered
+		String result = getTimeIndex().getRevisionBefore(d);
 
 		if (result == null) {
 			throw new SVSRevisionNotFindException();
@@ -222,6 +1020,11 @@ public class SVSRepositoryImpl<T extends Serializable> implements
 
 	}
 
+	@Override
+	public synchronized List<String> getRevisionsBetween(Date from, Date to) {
+		return getTimeIndex().getRevisionsBetween(from, to);
+	}
+
 	@Override
 	public T restoreObjectBeforeDate(Date d) {
 		return restoreSnapShot(getRevisionBefore(d));
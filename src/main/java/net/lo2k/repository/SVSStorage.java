@@ -0,0 +1,43 @@
+/*
+ * Copyright 2011 Jrme Wax <jerome.wax@lo2k.net>
+ * http://www.lo2k.net
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.lo2k.repository;
+
+/**
+ * how a revision is stored once it is no more the latest one
+ * 
+ * @author wax
+ * 
+ */
+public enum SVSStorage {
+
+	/**
+	 * complete snapshot, restored without any patch
+	 */
+	COMPLETE,
+
+	/**
+	 * delta to next revision, smaller but slower to restore
+	 */
+	DELTA,
+
+	/**
+	 * delta, plus a complete copy for fast restore
+	 */
+	BOTH
+
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2011 Jrme Wax <jerome.wax@lo2k.net>
+ * http://www.lo2k.net
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.lo2k.repository;
+
+import net.lo2k.zip.Compression;
+
+/**
+ * what is known about a revision when choosing its storage
+ * 
+ * @author wax
+ * 
+ */
+public class SVSStorageCandidate {
+
+	private final String revision;
+
+	private final int completeSize;
+
+	private final int deltaSize;
+
+	private final int chainLength;
+
+	private final int chainDeltaBytes;
+
+	private final int accessCount;
+
+	// serialized revision and compression of deltas, null if unknown
+	private final String text;
+
+	private final Compression compression;
+
+	// compressed size of complete snapshot, -1 if not computed yet
+	private int compressedCompleteSize;
+
+	/**
+	 * @param revision
+	 * @param completeSize
+	 *            size of complete snapshot
+	 * @param deltaSize
+	 *            size of delta to next revision
+	 * @param chainLength
+	 *            number of deltas stored since last complete snapshot
+	 * @param chainDeltaBytes
+	 *            size of deltas stored since last complete snapshot
+	 * @param accessCount
+	 *            number of restores of this revision
+	 */
+	public SVSStorageCandidate(String revision, int completeSize,
+			int deltaSize, int chainLength, int chainDeltaBytes,
+			int accessCount) {
+		this(revision, completeSize, deltaSize, chainLength,
+				chainDeltaBytes, accessCount, null, null);
+	}
+
+	/**
+	 * @param revision
+	 * @param completeSize
+	 *            size of complete snapshot
+	 * @param deltaSize
+	 *            compressed size of delta to next revision
+	 * @param chainLength
+	 *            number of deltas stored since last complete snapshot
+	 * @param chainDeltaBytes
+	 *            size of deltas stored since last complete snapshot
+	 * @param accessCount
+	 *            number of restores of this revision
+	 * @param text
+	 *            serialized revision, null if unknown
+	 * @param compression
+	 *            compression of deltas, null if unknown
+	 */
+	public SVSStorageCandidate(String revision, int completeSize,
+			int deltaSize, int chainLength, int chainDeltaBytes,
+			int accessCount, String text, Compression compression) {
+		this.revision = revision;
+		this.completeSize = completeSize;
+		this.deltaSize = deltaSize;
+		this.chainLength = chainLength;
+		this.chainDeltaBytes = chainDeltaBytes;
+		this.accessCount = accessCount;
+		this.text = text;
+		this.compression = compression;
+		this.compressedCompleteSize = -1;
+	}
+
+	public String getRevision() {
+		return revision;
+	}
+
+	public int getCompleteSize() {
+		return completeSize;
+	}
+
+	/**
+	 * size of complete snapshot compressed as deltas are, to compare it with
+	 * delta size. Computed on first call, complete size if text is unknown.
+	 * 
+	 * @return
+	 */
+	public int getCompressedCompleteSize() {
+		if (compressedCompleteSize < 0) {
+			if (text == null || compression == null) {
+				compressedCompleteSize = completeSize;
+			} else {
+				compressedCompleteSize = compression.compress(text, null).length;
+			}
+		}
+		return compressedCompleteSize;
+	}
+
+	public int getDeltaSize() {
+		return deltaSize;
+	}
+
+	public int getChainLength() {
+		return chainLength;
+	}
+
+	public int getChainDeltaBytes() {
+		return chainDeltaBytes;
+	}
+
+	public int getAccessCount() {
+		return accessCount;
+	}
+
+}
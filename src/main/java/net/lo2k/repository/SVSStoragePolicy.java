@@ -0,0 +1,49 @@
+/*
+ * Copyright 2011 Jrme Wax <jerome.wax@lo2k.net>
+ * http://www.lo2k.net
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.lo2k.repository;
+
+import java.io.Serializable;
+
+/**
+ * decide how a revision is stored when a newer revision is made
+ * 
+ * @author wax
+ * 
+ */
+public interface SVSStoragePolicy extends Serializable {
+
+	/**
+	 * cheap check done before computing the delta
+	 * 
+	 * @param chainLength
+	 *            number of deltas stored since last complete snapshot
+	 * @param chainDeltaBytes
+	 *            size of deltas stored since last complete snapshot
+	 * @return true if revision must stay complete, delta is then not computed
+	 */
+	boolean isCompleteRequired(int chainLength, int chainDeltaBytes);
+
+	/**
+	 * choose storage of a revision
+	 * 
+	 * @param candidate
+	 * @return
+	 */
+	SVSStorage choose(SVSStorageCandidate candidate);
+
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2011 Jrme Wax <jerome.wax@lo2k.net>
+ * http://www.lo2k.net
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.lo2k.repository;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * creation dates of history entries, sorted to find a revision by date with a
+ * binary search.
+ * 
+ * A date older than previous entry (clock going back) is stored as previous
+ * entry date, so "first entry created after a date" is the same as with a
+ * scan of the history.
+ * 
+ * @author wax
+ * 
+ */
+public class SVSTimeIndex {
+
+	private long[] times;
+
+	private String[] revisions;
+
+	private int count;
+
+	public SVSTimeIndex() {
+		times = new long[16];
+		revisions = new String[16];
+		count = 0;
+	}
+
+	/**
+	 * append an history entry
+	 * 
+	 * @param revision
+	 * @param createdAt
+	 */
+	public void add(String revision, Date createdAt) {
+		if (count == times.length) {
+			long[] newTimes = new long[count * 2];
+			System.arraycopy(times, 0, newTimes, 0, count);
+			times = newTimes;
+			String[] newRevisions = new String[count * 2];
+			System.arraycopy(revisions, 0, newRevisions, 0, count);
+			revisions = newRevisions;
+		}
+
+		long time = createdAt.getTime();
+		if (count > 0 && time < times[count - 1]) {
+			time = times[count - 1];
+		}
+		times[count] = time;
+		revisions[count] = revision;
+		count++;
+	}
+
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * get latest revision created before or at this date
+	 * 
+	 * @param d
+	 * @return null if every revision is after this date
+	 */
+	public String getRevisionBefore(Date d) {
+		int index = firstAfter(d.getTime());
+		if (index == 0) {
+			return null;
+		}
+		return revisions[index - 1];
+	}
+
+	/**
+	 * get revisions created between two dates (included), in history order
+	 * 
+	 * @param from
+	 * @param to
+	 * @return
+	 */
+	public List<String> getRevisionsBetween(Date from, Date to) {
+		int start = firstAtOrAfter(from.getTime());
+		int end = firstAfter(to.getTime());
+
+		List<String> result = new ArrayList<String>(Math.max(end - start, 0));
+		for (int i = start; i < end; i++) {
+			result.add(revisions[i]);
+		}
+		return result;
+	}
+
+	/**
+	 * @param time
+	 * @return index of first entry created after time
+	 */
+	private int firstAfter(long time) {
+		int low = 0;
+		int high = count;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (times[mid] <= time) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * @param time
+	 * @return index of first entry created at or after time
+	 */
+	private int firstAtOrAfter(long time) {
+		int low = 0;
+		int high = count;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (times[mid] < time) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+}
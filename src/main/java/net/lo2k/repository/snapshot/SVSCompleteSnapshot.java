@@ -29,30 +29,74 @@ public class SVSCompleteSnapshot<T extends Serializable> extends SVSSnapshot<T>
 	private static final long serialVersionUID = -7832332404079571500L;
 	private T obj;
 
+	// serialized size, -1 if not computed yet
+	private int size;
+
+	// serialized object kept until next snapshot has been diffed
+	private transient String serialized;
+
 	public SVSCompleteSnapshot() {
 		//
 		super();
 		obj = null;
+		size = -1;
 	}
 
 	public SVSCompleteSnapshot(T object, SVSSnapshotRepository<T> repository) {
+		this(object, repository.getPatcher().getStringFor(object), repository);
+	}
+
+	/**
+	 * @param object
+	 * @param serialized
+	 *            object already serialized, used for hash and size
+	 * @param repository
+	 */
+	public SVSCompleteSnapshot(T object, String serialized,
+			SVSSnapshotRepository<T> repository) {
 		super();
 		this.obj = object;
+		this.serialized = serialized;
+		this.size = serialized.length();
 
-		SVSPatcher<T> patcher = new SVSPatcher<T>();
-		setRevisionNumber(patcher.getHashFor(object));
+		setRevisionNumber(repository.getPatcher().getHashForString(serialized));
 
 	}
 
+	/**
+	 * @param object
+	 * @param serialized
+	 *            object already serialized, used for size
+	 * @param revisionNumber
+	 *            hash of serialized object, already computed
+	 */
+	public SVSCompleteSnapshot(T object, String serialized,
+			String revisionNumber) {
+		super();
+		this.obj = object;
+		this.serialized = serialized;
+		this.size = serialized.length();
+
+		setRevisionNumber(revisionNumber);
+	}
+
 	/** only for serialization **/
 	public T getObj() {
 		return obj;
 	}
 
 	public void setObj(T obj) {
+		// size and revision are persisted, they depend on the codec
 		this.obj = obj;
-		SVSPatcher<T> patcher = new SVSPatcher<T>();
-		setRevisionNumber(patcher.getHashFor(obj));
+		this.serialized = null;
+	}
+
+	public int getSerializedSize() {
+		return size;
+	}
+
+	public void setSerializedSize(int size) {
+		this.size = size;
 	}
 
 	/** END only for serialization **/
@@ -62,10 +106,45 @@ public class SVSCompleteSnapshot<T extends Serializable> extends SVSSnapshot<T>
 		return obj;
 	}
 
+	/**
+	 * get serialized object, without serializing it again if still kept
+	 * 
+	 * @param patcher
+	 * @return
+	 */
+	public String getString(SVSPatcher<T> patcher) {
+		String string = serialized;
+		if (string == null) {
+			string = patcher.getStringFor(obj);
+		}
+		return string;
+	}
+
+	/**
+	 * replace object by a private copy decoded from serialized form, if still
+	 * kept
+	 * 
+	 * @param patcher
+	 */
+	public void copyObject(SVSPatcher<T> patcher) {
+		if (serialized != null) {
+			obj = patcher.getObjectFromString(serialized);
+		}
+	}
+
+	@Override
+	public void releaseString() {
+		serialized = null;
+	}
+
 	@Override
 	public int getSize() {
-		SVSPatcher<T> patcher = new SVSPatcher<T>();
-		return patcher.getStringFor(obj).length();
+		if (size < 0) {
+			// not persisted by files older than codecs, always yaml
+			SVSPatcher<T> patcher = new SVSPatcher<T>();
+			size = patcher.getStringFor(obj).length();
+		}
+		return size;
 	}
 
 }
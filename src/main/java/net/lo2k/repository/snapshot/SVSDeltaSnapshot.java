@@ -20,7 +20,6 @@ package net.lo2k.repository.snapshot;
 import java.io.Serializable;
 
 import net.lo2k.patcher.SVSPatch;
-import net.lo2k.patcher.SVSPatcher;
 
 public class SVSDeltaSnapshot<T extends Serializable> extends SVSSnapshot<T> {
 
@@ -44,14 +43,7 @@ public class SVSDeltaSnapshot<T extends Serializable> extends SVSSnapshot<T> {
 
 	@Override
 	public T getObject(SVSSnapshotRepository<T> repository) {
-		SVSSnapshot<T> futureSnap = repository.get(futureRev);
-
-		SVSPatcher<T> patcher = new SVSPatcher<T>();
-		T patchedObj = patcher.patchWith(futureSnap.getObject(repository),
-				sVSPatch);
-		System.out.println("Patch from " + futureSnap.getRevisionNumber()
-				+ " => " + getRevisionNumber());
-		return patchedObj;
+		return new SVSSnapshotResolver<T>(repository).getObject(this);
 	}
 
 	@Override
@@ -75,4 +67,8 @@ public class SVSDeltaSnapshot<T extends Serializable> extends SVSSnapshot<T> {
 		this.sVSPatch = patch;
 	}
 
+	public void setSVSPatch(SVSPatch<T> patch) {
+		this.sVSPatch = patch;
+	}
+
 }
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2011 Jrme Wax <jerome.wax@lo2k.net>
+ * http://www.lo2k.net
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.lo2k.repository.snapshot;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * LRU cache of serialized revisions, bounded by total text length. Text is
+ * cached instead of objects so a restored object can be modified by caller
+ * without altering cache.
+ * 
+ * @author wax
+ * 
+ */
+public class SVSRevisionCache {
+
+	private final int maxSize;
+
+	private int size;
+
+	// access ordered
+	private final LinkedHashMap<String, String> entries;
+
+	/**
+	 * @param maxSize
+	 *            max total length of cached serialized revisions
+	 */
+	public SVSRevisionCache(int maxSize) {
+		this.maxSize = maxSize;
+		this.size = 0;
+		this.entries = new LinkedHashMap<String, String>(16, 0.75f, true);
+	}
+
+	/**
+	 * get serialized revision
+	 * 
+	 * @param revision
+	 * @return null if revision is not cached
+	 */
+	public synchronized String get(String revision) {
+		return entries.get(revision);
+	}
+
+	/**
+	 * cache a serialized revision and evict least recently used ones
+	 * 
+	 * @param revision
+	 * @param text
+	 */
+	public synchronized void put(String revision, String text) {
+		if (text.length() > maxSize) {
+			return;
+		}
+
+		String previous = entries.put(revision, text);
+		if (previous != null) {
+			size -= previous.length();
+		}
+		size += text.length();
+
+		Iterator<Map.Entry<String, String>> it = entries.entrySet()
+				.iterator();
+		while (size > maxSize && it.hasNext()) {
+			Map.Entry<String, String> eldest = it.next();
+			size -= eldest.getValue().length();
+			it.remove();
+		}
+	}
+
+	public synchronized void clear() {
+		entries.clear();
+		size = 0;
+	}
+
+	/**
+	 * @return total length of cached serialized revisions
+	 */
+	public synchronized int getSize() {
+		return size;
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	public synchronized int getCount() {
+		return entries.size();
+	}
+
+}
@@ -62,19 +62,42 @@ public abstract class SVSSnapshot<T extends Serializable> implements
 
 	public abstract int getSize();
 
+	/**
+	 * release serialized form kept in memory, if any
+	 */
+	public void releaseString() {
+		// nothing kept by default
+	}
+
 	public SVSDeltaSnapshot<T> convertToSVSDeltaSnapshot(String futureRev,
 			SVSSnapshotRepository<T> repository) {
-		SVSPatcher<T> patcher = new SVSPatcher<T>();
+		SVSPatcher<T> patcher = repository.getPatcher();
+		SVSSnapshotResolver<T> resolver = new SVSSnapshotResolver<T>(
+				repository);
 
 		// create counter patch to return to previous version
-		SVSPatch<T> patch = patcher.makeSVSPatchFor(repository.get(futureRev)
-				.getObject(repository), this.getObject(repository));
+		SVSPatch<T> patch = patcher.makeDeltaForStrings(resolver
+				.getString(repository.get(futureRev)), resolver.getString(this));
+
+		return convertToSVSDeltaSnapshot(futureRev, patch);
+	}
 
+	/**
+	 * convert with a patch already computed
+	 * 
+	 * @param futureRev
+	 * @param patch
+	 *            patch to rebuild this revision from futureRev
+	 * @return
+	 */
+	public SVSDeltaSnapshot<T> convertToSVSDeltaSnapshot(String futureRev,
+			SVSPatch<T> patch) {
 		SVSDeltaSnapshot<T> deltaSnapshot = new SVSDeltaSnapshot<T>(patch,
-				futureRev, repository);
+				futureRev, null);
 
-		// fetch revision from Snapshot
+		// fetch revision and date from Snapshot
 		deltaSnapshot.setRevisionNumber(this.getRevisionNumber());
+		deltaSnapshot.setCreatedAt(this.getCreatedAt());
 		return deltaSnapshot;
 	}
 
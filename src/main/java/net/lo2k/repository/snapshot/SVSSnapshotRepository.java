@@ -18,7 +18,17 @@
 package net.lo2k.repository.snapshot;
 
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
+
+import net.lo2k.patcher.SVSCodec;
+import net.lo2k.patcher.SVSCompressionDictionary;
+import net.lo2k.patcher.SVSDiffEngine;
+import net.lo2k.patcher.SVSExactDeltaEngine;
+import net.lo2k.patcher.SVSPatcher;
+import net.lo2k.patcher.SVSYamlCodec;
+import net.lo2k.zip.Compression;
 
 public class SVSSnapshotRepository<T extends Serializable> implements
 		Serializable {
@@ -26,14 +36,116 @@ public class SVSSnapshotRepository<T extends Serializable> implements
 	 * 
 	 */
 	private static final long serialVersionUID = -1046148868458676870L;
-	HashMap<String, SVSSnapshot<T>> history;
+	// replaced at once by repack, while other threads read it
+	volatile HashMap<String, SVSSnapshot<T>> history;
+
+	// complete copies of revisions also stored as delta
+	HashMap<String, SVSCompleteSnapshot<T>> completeCopies;
+
+	// total size of snapshots, -1 if not computed yet
+	int size;
+
+	SVSCodec codec;
+
+	SVSDiffEngine deltaEngine;
+
+	// every dictionary version, needed to decode old deltas
+	List<SVSCompressionDictionary> dictionaries;
+
+	Compression compression;
+
+	// runtime only, never saved
+	transient SVSRevisionCache cache;
+
+	transient SVSPatcher<T> patcher;
+
+	transient HashMap<String, Integer> accessCounts;
 
 	public SVSSnapshotRepository() {
+		this(new SVSYamlCodec());
+	}
+
+	/**
+	 * @param codec
+	 *            serialization used to hash, diff and patch snapshots
+	 */
+	public SVSSnapshotRepository(SVSCodec codec) {
+		this(codec, new SVSExactDeltaEngine());
+	}
+
+	/**
+	 * @param codec
+	 *            serialization used to hash, diff and patch snapshots
+	 * @param deltaEngine
+	 *            engine used to make delta snapshots
+	 */
+	public SVSSnapshotRepository(SVSCodec codec, SVSDiffEngine deltaEngine) {
 		history = new HashMap<String, SVSSnapshot<T>>();
+		completeCopies = new HashMap<String, SVSCompleteSnapshot<T>>();
+		size = 0;
+		this.codec = codec;
+		this.deltaEngine = deltaEngine;
+		this.dictionaries = new ArrayList<SVSCompressionDictionary>();
+		this.compression = Compression.DEFLATE;
 	}
 
 	public void put(SVSSnapshot<T> snap) {
-		history.put(snap.getRevisionNumber(), snap);
+		SVSSnapshot<T> previous = history.put(snap.getRevisionNumber(), snap);
+		if (size >= 0) {
+			if (previous != null) {
+				size -= previous.getSize();
+			}
+			size += snap.getSize();
+		}
+	}
+
+	/**
+	 * keep a complete copy of a revision stored as delta
+	 * 
+	 * @param snap
+	 */
+	public void putCompleteCopy(SVSCompleteSnapshot<T> snap) {
+		SVSCompleteSnapshot<T> previous = completeCopies.put(snap
+				.getRevisionNumber(), snap);
+		if (size >= 0) {
+			if (previous != null) {
+				size -= previous.getSize();
+			}
+			size += snap.getSize();
+		}
+	}
+
+	/**
+	 * @param revision
+	 * @return complete copy of revision, null if none
+	 */
+	public SVSCompleteSnapshot<T> getCompleteCopy(String revision) {
+		return completeCopies.get(revision);
+	}
+
+	/**
+	 * count a restore of a revision (not saved)
+	 * 
+	 * @param revision
+	 */
+	public void recordAccess(String revision) {
+		if (accessCounts == null) {
+			accessCounts = new HashMap<String, Integer>();
+		}
+		Integer count = accessCounts.get(revision);
+		accessCounts.put(revision, count == null ? 1 : count + 1);
+	}
+
+	/**
+	 * @param revision
+	 * @return number of restores of revision since repository was loaded
+	 */
+	public int getAccessCount(String revision) {
+		if (accessCounts == null) {
+			return 0;
+		}
+		Integer count = accessCounts.get(revision);
+		return count == null ? 0 : count;
 	}
 
 	public SVSSnapshot<T> get(String revision) {
@@ -42,11 +154,17 @@ public class SVSSnapshotRepository<T extends Serializable> implements
 	}
 
 	public int getSize() {
-		int totalSize = 0;
-		for (SVSSnapshot<T> t : history.values()) {
-			totalSize += t.getSize();
+		if (size < 0) {
+			int totalSize = 0;
+			for (SVSSnapshot<T> t : history.values()) {
+				totalSize += t.getSize();
+			}
+			for (SVSSnapshot<T> t : completeCopies.values()) {
+				totalSize += t.getSize();
+			}
+			size = totalSize;
 		}
-		return totalSize;
+		return size;
 	}
 
 	public HashMap<String, SVSSnapshot<T>> getHistory() {
@@ -55,5 +173,145 @@ public class SVSSnapshotRepository<T extends Serializable> implements
 
 	public void setHistory(HashMap<String, SVSSnapshot<T>> history) {
 		this.history = history;
+		size = -1;
+		disableCache();
+	}
+
+	public HashMap<String, SVSCompleteSnapshot<T>> getCompleteCopies() {
+		return completeCopies;
+	}
+
+	public void setCompleteCopies(
+			HashMap<String, SVSCompleteSnapshot<T>> completeCopies) {
+		this.completeCopies = completeCopies;
+		size = -1;
+	}
+
+	/**
+	 * replace history by an equivalent one (same revisions, other storage),
+	 * restored revisions stay cached
+	 * 
+	 * @param history
+	 */
+	public void replaceHistory(HashMap<String, SVSSnapshot<T>> history) {
+		this.history = history;
+		size = -1;
+	}
+
+	/**
+	 * copy of repository sharing its snapshots, to read it while it is
+	 * modified
+	 * 
+	 * @return
+	 */
+	public SVSSnapshotRepository<T> copy() {
+		SVSSnapshotRepository<T> copy = new SVSSnapshotRepository<T>(codec,
+				deltaEngine);
+		copy.history = new HashMap<String, SVSSnapshot<T>>(history);
+		copy.completeCopies = new HashMap<String, SVSCompleteSnapshot<T>>(
+				completeCopies);
+		copy.dictionaries = new ArrayList<SVSCompressionDictionary>(
+				dictionaries);
+		copy.compression = compression;
+		if (accessCounts != null) {
+			copy.accessCounts = new HashMap<String, Integer>(accessCounts);
+		}
+		copy.size = -1;
+		return copy;
+	}
+
+	public SVSCodec getCodec() {
+		return codec;
+	}
+
+	public void setCodec(SVSCodec codec) {
+		this.codec = codec;
+		patcher = null;
+		disableCache();
+	}
+
+	public SVSDiffEngine getDeltaEngine() {
+		return deltaEngine;
+	}
+
+	/**
+	 * change engine of next delta snapshots, each delta keeps the engine which
+	 * made it
+	 * 
+	 * @param deltaEngine
+	 */
+	public void setDeltaEngine(SVSDiffEngine deltaEngine) {
+		this.deltaEngine = deltaEngine;
+		patcher = null;
+	}
+
+	/**
+	 * @return patcher using repository codec and delta engine
+	 */
+	public SVSPatcher<T> getPatcher() {
+		if (patcher == null) {
+			patcher = new SVSPatcher<T>(codec, deltaEngine, dictionaries,
+					compression);
+		}
+		return patcher;
+	}
+
+	public Compression getCompression() {
+		return compression;
+	}
+
+	/**
+	 * change compression of next delta snapshots, LZ4 is faster but less
+	 * compact than deflate
+	 * 
+	 * @param compression
+	 */
+	public void setCompression(Compression compression) {
+		this.compression = compression;
+		patcher = null;
+	}
+
+	public List<SVSCompressionDictionary> getDictionaries() {
+		return dictionaries;
+	}
+
+	public void setDictionaries(List<SVSCompressionDictionary> dictionaries) {
+		this.dictionaries = dictionaries;
+		patcher = null;
+	}
+
+	/**
+	 * train a new dictionary version, used to compress next deltas
+	 * 
+	 * @param samples
+	 *            serialized snapshots
+	 * @return
+	 */
+	public SVSCompressionDictionary trainDictionary(List<String> samples) {
+		SVSCompressionDictionary dictionary = SVSCompressionDictionary.train(
+				samples, dictionaries.size() + 1);
+		dictionaries.add(dictionary);
+		return dictionary;
+	}
+
+	/**
+	 * cache restored revisions
+	 * 
+	 * @param maxSize
+	 *            max total length of cached serialized revisions
+	 */
+	public void enableCache(int maxSize) {
+		cache = new SVSRevisionCache(maxSize);
+	}
+
+	public void disableCache() {
+		cache = null;
+	}
+
+	/**
+	 * @return revision cache, null if disabled
+	 */
+	public SVSRevisionCache getCache() {
+		return cache;
 	}
 }
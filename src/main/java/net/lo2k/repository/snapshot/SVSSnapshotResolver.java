@@ -0,0 +1,125 @@
+/*
+ * Copyright 2011 Jrme Wax <jerome.wax@lo2k.net>
+ * http://www.lo2k.net
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.lo2k.repository.snapshot;
+
+import java.io.Serializable;
+import java.util.LinkedList;
+
+import net.lo2k.patcher.SVSPatcher;
+
+/**
+ * restore a snapshot by walking its delta chain iteratively. Every patch is
+ * applied on the serialized text, object is decoded only once at the end.
+ * 
+ * @author wax
+ * 
+ * @param <T>
+ */
+public class SVSSnapshotResolver<T extends Serializable> {
+
+	private final SVSSnapshotRepository<T> repository;
+
+	private final SVSPatcher<T> patcher;
+
+	public SVSSnapshotResolver(SVSSnapshotRepository<T> repository) {
+		this.repository = repository;
+		this.patcher = repository.getPatcher();
+	}
+
+	/**
+	 * restore object of a snapshot
+	 * 
+	 * @param snapshot
+	 * @return
+	 */
+	public T getObject(SVSSnapshot<T> snapshot) {
+		if (!(snapshot instanceof SVSDeltaSnapshot<?>)) {
+			return snapshot.getObject(repository);
+		}
+		SVSCompleteSnapshot<T> copy = repository.getCompleteCopy(snapshot
+				.getRevisionNumber());
+		if (copy != null) {
+			return copy.getObject(repository);
+		}
+		return patcher.getObjectFromString(getString(snapshot));
+	}
+
+	/**
+	 * restore serialized form of a snapshot
+	 * 
+	 * @param snapshot
+	 * @return
+	 */
+	public String getString(SVSSnapshot<T> snapshot) {
+		SVSRevisionCache cache = repository.getCache();
+
+		// deltas to apply, nearest from base first
+		LinkedList<SVSDeltaSnapshot<T>> deltas = new LinkedList<SVSDeltaSnapshot<T>>();
+
+		SVSSnapshot<T> current = snapshot;
+		String text;
+		while (true) {
+			if (cache != null) {
+				text = cache.get(current.getRevisionNumber());
+				if (text != null) {
+					break;
+				}
+			}
+
+			SVSCompleteSnapshot<T> copy = repository.getCompleteCopy(current
+					.getRevisionNumber());
+			if (copy != null) {
+				current = copy;
+			}
+			if (current instanceof SVSCompleteSnapshot<?>) {
+				text = ((SVSCompleteSnapshot<T>) current).getString(patcher);
+				if (cache != null) {
+					cache.put(current.getRevisionNumber(), text);
+				}
+				break;
+			}
+
+			if (!(current instanceof SVSDeltaSnapshot<?>)) {
+				text = patcher.getStringFor(current.getObject(repository));
+				if (cache != null) {
+					cache.put(current.getRevisionNumber(), text);
+				}
+				break;
+			}
+
+			SVSDeltaSnapshot<T> delta = (SVSDeltaSnapshot<T>) current;
+			deltas.addFirst(delta);
+			current = repository.get(delta.getFutureRev());
+
+			if (deltas.size() > repository.getHistory().size()) {
+				throw new IllegalStateException("delta chain loop on "
+						+ snapshot.getRevisionNumber());
+			}
+		}
+
+		// every hop is also cached to restore nearby revisions faster
+		for (SVSDeltaSnapshot<T> delta : deltas) {
+			text = patcher.patchString(text, delta.getSVSPatch());
+			if (cache != null) {
+				cache.put(delta.getRevisionNumber(), text);
+			}
+		}
+		return text;
+	}
+
+}
@@ -28,6 +28,10 @@ import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
 import java.util.Stack;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -53,6 +57,51 @@ public class DiffMatchPatch {
 	 * Cost of an empty edit operation in terms of edit characters.
 	 */
 	public short Diff_EditCost = 4;
+	/**
+	 * Total length of two texts above which their independent halves are
+	 * diffed in parallel (0 = never). Diff is the same as a sequential one.
+	 */
+	public int Diff_ParallelThreshold = 0;
+	/**
+	 * Max number of edit graph steps of a whole diff (0 for no limit), shared
+	 * by all middle snake searches of the diff. When set, Diff_Timeout and
+	 * Diff_ParallelThreshold are ignored, searches run in a fixed order and
+	 * diffs don't depend on machine load.
+	 */
+	public long Diff_MaxSteps = 0;
+	/**
+	 * What to do when Diff_MaxSteps is exceeded.
+	 */
+	public BudgetFallback Diff_BudgetFallback = BudgetFallback.LINES;
+
+	/**
+	 * Fallback when a diff exceeds its step budget.
+	 */
+	public enum BudgetFallback {
+		/**
+		 * Delete and insert the whole part, like when Diff_Timeout is hit.
+		 */
+		DELETE_INSERT,
+		/**
+		 * Diff the part line by line, without character refinement.
+		 */
+		LINES,
+		/**
+		 * Throw a BudgetExceededException.
+		 */
+		ABORT
+	}
+
+	/**
+	 * Thrown when Diff_MaxSteps is exceeded and fallback is ABORT.
+	 */
+	public static class BudgetExceededException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		public BudgetExceededException(String message) {
+			super(message);
+		}
+	}
 	/**
 	 * At what point is no match declared (0.0 = perfection, 1.0 = very loose).
 	 */
@@ -76,9 +125,19 @@ public class DiffMatchPatch {
 	public short Patch_Margin = 4;
 
 	/**
-	 * The number of bits in an int.
+	 * Longest pattern located in one pass by match_bitap, longer patches are
+	 * split. Patterns longer than an int are matched with bit vectors of
+	 * several longs. Larger values mean fewer patches, but longer fuzzy
+	 * searches and more split large deletions.
+	 */
+	public short Match_MaxBits = 64;
+
+	/**
+	 * Pool of parallel diffs, created on first use. Its threads are daemons.
 	 */
-	private short Match_MaxBits = 32;
+	private static class DiffPool {
+		static final ForkJoinPool POOL = new ForkJoinPool();
+	}
 
 	/**
 	 * Internal class for returning results from diff_linesToChars(). Other less
@@ -139,15 +198,25 @@ public class DiffMatchPatch {
 	 */
 	public LinkedList<DFMDiff> dFMDiff_main(String text1, String text2,
 			boolean checklines) {
-		// Set a deadline by which time the diff must be complete.
-		long deadline;
-		if (Diff_Timeout <= 0) {
-			deadline = Long.MAX_VALUE;
-		} else {
-			deadline = System.currentTimeMillis()
-					+ (long) (Diff_Timeout * 1000);
+		return dFMDiff_main(text1, text2, checklines, dFMDiff_deadline(),
+				newSteps());
+	}
+
+	/**
+	 * @return Time by which a diff starting now must be complete.
+	 */
+	private long dFMDiff_deadline() {
+		if (Diff_Timeout <= 0 || Diff_MaxSteps > 0) {
+			return Long.MAX_VALUE;
 		}
-		return dFMDiff_main(text1, text2, checklines, deadline);
+		return System.currentTimeMillis() + (long) (Diff_Timeout * 1000);
+	}
+
+	/**
+	 * @return Counter of steps spent by a whole diff, null if unlimited.
+	 */
+	private AtomicLong newSteps() {
+		return Diff_MaxSteps > 0 ? new AtomicLong() : null;
 	}
 
 	/**
@@ -165,10 +234,13 @@ public class DiffMatchPatch {
 	 * @param deadline
 	 *            Time when the diff should be complete by. Used internally for
 	 *            recursive calls. Users should set DiffTimeout instead.
+	 * @param steps
+	 *            Steps spent by the whole diff, null if unlimited. Users
+	 *            should set Diff_MaxSteps instead.
 	 * @return Linked List of Diff objects.
 	 */
 	private LinkedList<DFMDiff> dFMDiff_main(String text1, String text2,
-			boolean checklines, long deadline) {
+			boolean checklines, long deadline, AtomicLong steps) {
 		// Check for null inputs.
 		if (text1 == null || text2 == null) {
 			throw new IllegalArgumentException("Null inputs. (diff_main)");
@@ -197,7 +269,8 @@ public class DiffMatchPatch {
 		text2 = text2.substring(0, text2.length() - commonlength);
 
 		// Compute the diff on the middle block.
-		dFMDiffs = dFMDiff_compute(text1, text2, checklines, deadline);
+		dFMDiffs = dFMDiff_compute(text1, text2, checklines, deadline,
+				steps);
 
 		// Restore the prefix and suffix.
 		if (commonprefix.length() != 0) {
@@ -225,10 +298,12 @@ public class DiffMatchPatch {
 	 *            slightly less optimal diff.
 	 * @param deadline
 	 *            Time when the diff should be complete by.
+	 * @param steps
+	 *            Steps spent by the whole diff, null if unlimited.
 	 * @return Linked List of Diff objects.
 	 */
 	private LinkedList<DFMDiff> dFMDiff_compute(String text1, String text2,
-			boolean checklines, long deadline) {
+			boolean checklines, long deadline, AtomicLong steps) {
 		LinkedList<DFMDiff> dFMDiffs = new LinkedList<DFMDiff>();
 
 		if (text1.length() == 0) {
@@ -276,10 +351,20 @@ public class DiffMatchPatch {
 			String text2_b = hm[3];
 			String mid_common = hm[4];
 			// Send both pairs off for separate processing.
-			LinkedList<DFMDiff> dFMDiffs_a = dFMDiff_main(text1_a, text2_a,
-					checklines, deadline);
-			LinkedList<DFMDiff> dFMDiffs_b = dFMDiff_main(text1_b, text2_b,
-					checklines, deadline);
+			LinkedList<DFMDiff> dFMDiffs_a;
+			LinkedList<DFMDiff> dFMDiffs_b;
+			if (isParallel(text1.length() + text2.length())) {
+				RecursiveTask<LinkedList<DFMDiff>> task_b = mainTask(text1_b,
+						text2_b, checklines, deadline, steps);
+				dFMDiffs_a = forkJoin(mainTask(text1_a, text2_a, checklines,
+						deadline, steps), task_b);
+				dFMDiffs_b = task_b.join();
+			} else {
+				dFMDiffs_a = dFMDiff_main(text1_a, text2_a, checklines,
+						deadline, steps);
+				dFMDiffs_b = dFMDiff_main(text1_b, text2_b, checklines,
+						deadline, steps);
+			}
 			// Merge the results.
 			dFMDiffs = dFMDiffs_a;
 			dFMDiffs.add(new DFMDiff(Operation.EQUAL, mid_common));
@@ -288,10 +373,10 @@ public class DiffMatchPatch {
 		}
 
 		if (checklines && text1.length() > 100 && text2.length() > 100) {
-			return dFMDiff_lineMode(text1, text2, deadline);
+			return dFMDiff_lineMode(text1, text2, deadline, steps);
 		}
 
-		return dFMDiff_bisect(text1, text2, deadline);
+		return dFMDiff_bisect(text1, text2, deadline, steps);
 	}
 
 	/**
@@ -304,10 +389,12 @@ public class DiffMatchPatch {
 	 *            New string to be diffed.
 	 * @param deadline
 	 *            Time when the diff should be complete by.
+	 * @param steps
+	 *            Steps spent by the whole diff, null if unlimited.
 	 * @return Linked List of Diff objects.
 	 */
 	private LinkedList<DFMDiff> dFMDiff_lineMode(String text1, String text2,
-			long deadline) {
+			long deadline, AtomicLong steps) {
 		// Scan the text on a line-by-line basis first.
 		LinesToCharsResult b = diff_linesToChars(text1, text2);
 		text1 = b.chars1;
@@ -315,7 +402,7 @@ public class DiffMatchPatch {
 		List<String> linearray = b.lineArray;
 
 		LinkedList<DFMDiff> dFMDiffs = dFMDiff_main(text1, text2, false,
-				deadline);
+				deadline, steps);
 
 		// Convert the diff back to original text.
 		dFMDiff_charsToLines(dFMDiffs, linearray);
@@ -351,7 +438,7 @@ public class DiffMatchPatch {
 						pointer.remove();
 					}
 					for (DFMDiff newDFMDiff : dFMDiff_main(text_delete,
-							text_insert, false, deadline)) {
+							text_insert, false, deadline, steps)) {
 						pointer.add(newDFMDiff);
 					}
 				}
@@ -368,6 +455,313 @@ public class DiffMatchPatch {
 		return dFMDiffs;
 	}
 
+	/**
+	 * Gaps between line anchors smaller than this are diffed character by
+	 * character.
+	 */
+	private static final int PATIENCE_REFINE_LENGTH = 4096;
+
+	/**
+	 * Find the differences between two texts with a patience diff: lines
+	 * unique in both texts are matched first, in order, and gaps between them
+	 * are diffed recursively. When a gap has no unique line, it is split on
+	 * its least frequent common line (histogram diff). Small gaps are diffed
+	 * character by character. Much faster than bisect on large line oriented
+	 * texts with moved blocks.
+	 * 
+	 * @param text1
+	 *            Old string to be diffed.
+	 * @param text2
+	 *            New string to be diffed.
+	 * @return Linked List of Diff objects.
+	 */
+	public LinkedList<DFMDiff> dFMDiff_patience(String text1, String text2) {
+		if (text1 == null || text2 == null) {
+			throw new IllegalArgumentException("Null inputs. (diff_patience)");
+		}
+
+		// Lines are compared by id.
+		Map<String, Integer> lineIds = new HashMap<String, Integer>();
+		PatienceText a = new PatienceText(text1, lineIds);
+		PatienceText b = new PatienceText(text2, lineIds);
+
+		LinkedList<DFMDiff> dFMDiffs = new LinkedList<DFMDiff>();
+		// Gaps refined by character share deadline and budget.
+		dFMDiff_patience(a, 0, a.ids.length, b, 0, b.ids.length, true,
+				dFMDiff_deadline(), newSteps(), dFMDiffs);
+		dFMDiff_cleanupMerge(dFMDiffs);
+		return dFMDiffs;
+	}
+
+	/**
+	 * Line by line patience diff, lines are never diffed character by
+	 * character. Cost doesn't depend on length of changed lines.
+	 * 
+	 * @param text1
+	 *            Old string to be diffed.
+	 * @param text2
+	 *            New string to be diffed.
+	 * @return Linked List of Diff objects.
+	 */
+	private LinkedList<DFMDiff> dFMDiff_lines(String text1, String text2) {
+		Map<String, Integer> lineIds = new HashMap<String, Integer>();
+		PatienceText a = new PatienceText(text1, lineIds);
+		PatienceText b = new PatienceText(text2, lineIds);
+
+		LinkedList<DFMDiff> dFMDiffs = new LinkedList<DFMDiff>();
+		// Nothing is refined, no budget.
+		dFMDiff_patience(a, 0, a.ids.length, b, 0, b.ids.length, false,
+				Long.MAX_VALUE, null, dFMDiffs);
+		return dFMDiffs;
+	}
+
+	/**
+	 * Text split in lines, each line kept as an id and an offset.
+	 */
+	private static class PatienceText {
+		final String text;
+		final int[] ids;
+		// start of each line, and end of text
+		final int[] offsets;
+
+		PatienceText(String text, Map<String, Integer> lineIds) {
+			this.text = text;
+			int count = 0;
+			for (int i = 0; i < text.length(); i++) {
+				if (text.charAt(i) == '\n') {
+					count++;
+				}
+			}
+			if (text.length() > 0 && text.charAt(text.length() - 1) != '\n') {
+				count++;
+			}
+
+			ids = new int[count];
+			offsets = new int[count + 1];
+			int start = 0;
+			for (int line = 0; line < count; line++) {
+				int end = text.indexOf('\n', start);
+				end = end == -1 ? text.length() : end + 1;
+				String value = text.substring(start, end);
+				Integer id = lineIds.get(value);
+				if (id == null) {
+					id = lineIds.size();
+					lineIds.put(value, id);
+				}
+				ids[line] = id;
+				offsets[line] = start;
+				start = end;
+			}
+			offsets[count] = text.length();
+		}
+
+		String lines(int start, int end) {
+			return text.substring(offsets[start], offsets[end]);
+		}
+	}
+
+	/**
+	 * Diff line ranges [start1, end1) of a and [start2, end2) of b.
+	 * 
+	 * @param refine
+	 *            Diff small gaps character by character.
+	 * @param deadline
+	 *            Time when gaps should be refined by.
+	 * @param steps
+	 *            Steps spent by the whole diff, null if unlimited.
+	 */
+	private void dFMDiff_patience(PatienceText a, int start1, int end1,
+			PatienceText b, int start2, int end2, boolean refine,
+			long deadline, AtomicLong steps, LinkedList<DFMDiff> dFMDiffs) {
+		// Trim off common prefix and suffix lines.
+		int prefixStart = start1;
+		while (start1 < end1 && start2 < end2
+				&& a.ids[start1] == b.ids[start2]) {
+			start1++;
+			start2++;
+		}
+		if (start1 > prefixStart) {
+			dFMDiffs.add(new DFMDiff(Operation.EQUAL, a.lines(prefixStart,
+					start1)));
+		}
+		int suffixEnd = end1;
+		while (start1 < end1 && start2 < end2
+				&& a.ids[end1 - 1] == b.ids[end2 - 1]) {
+			end1--;
+			end2--;
+		}
+
+		if (start1 == end1) {
+			if (start2 < end2) {
+				dFMDiffs.add(new DFMDiff(Operation.INSERT, b.lines(start2,
+						end2)));
+			}
+		} else if (start2 == end2) {
+			dFMDiffs.add(new DFMDiff(Operation.DELETE, a.lines(start1, end1)));
+		} else if (refine
+				&& a.offsets[end1] - a.offsets[start1] + b.offsets[end2]
+						- b.offsets[start2] < PATIENCE_REFINE_LENGTH) {
+			dFMDiffs.addAll(dFMDiff_main(a.lines(start1, end1), b.lines(
+					start2, end2), false, deadline, steps));
+		} else {
+			dFMDiff_patienceAnchors(a, start1, end1, b, start2, end2, refine,
+					deadline, steps, dFMDiffs);
+		}
+
+		if (suffixEnd > end1) {
+			dFMDiffs.add(new DFMDiff(Operation.EQUAL, a.lines(end1,
+					suffixEnd)));
+		}
+	}
+
+	/**
+	 * Match anchor lines of two ranges without common prefix and suffix, and
+	 * diff the gaps between them.
+	 */
+	private void dFMDiff_patienceAnchors(PatienceText a, int start1,
+			int end1, PatienceText b, int start2, int end2, boolean refine,
+			long deadline, AtomicLong steps, LinkedList<DFMDiff> dFMDiffs) {
+		// Occurrences of each line: count and first position in each range.
+		Map<Integer, int[]> occurrences = new HashMap<Integer, int[]>();
+		for (int i = start1; i < end1; i++) {
+			int[] occurrence = occurrences.get(a.ids[i]);
+			if (occurrence == null) {
+				occurrence = new int[] { 0, 0, i, -1 };
+				occurrences.put(a.ids[i], occurrence);
+			}
+			occurrence[0]++;
+		}
+		for (int i = start2; i < end2; i++) {
+			int[] occurrence = occurrences.get(b.ids[i]);
+			if (occurrence != null) {
+				if (occurrence[1]++ == 0) {
+					occurrence[3] = i;
+				}
+			}
+		}
+
+		// Lines unique in both ranges, in order of a.
+		int[] unique1 = new int[end1 - start1];
+		int[] unique2 = new int[end1 - start1];
+		int count = 0;
+		int[] rarest = null;
+		for (int i = start1; i < end1; i++) {
+			int[] occurrence = occurrences.get(a.ids[i]);
+			if (occurrence[0] == 1 && occurrence[1] == 1) {
+				unique1[count] = i;
+				unique2[count] = occurrence[3];
+				count++;
+			} else if (occurrence[1] > 0
+					&& (rarest == null || occurrence[0] + occurrence[1] < rarest[0]
+							+ rarest[1])) {
+				rarest = occurrence;
+			}
+		}
+
+		int[] anchors = patienceSort(unique2, count);
+		if (anchors.length == 0) {
+			if (rarest == null) {
+				// No common line at all.
+				dFMDiffs.add(new DFMDiff(Operation.DELETE, a.lines(start1,
+						end1)));
+				dFMDiffs.add(new DFMDiff(Operation.INSERT, b.lines(start2,
+						end2)));
+				return;
+			}
+			// Histogram: split on first occurrences of the rarest line.
+			unique1[0] = rarest[2];
+			unique2[0] = rarest[3];
+			anchors = new int[] { 0 };
+		}
+
+		int previous1 = start1;
+		int previous2 = start2;
+		for (int anchor : anchors) {
+			int line1 = unique1[anchor];
+			int line2 = unique2[anchor];
+			dFMDiff_patience(a, previous1, line1, b, previous2, line2,
+					refine, deadline, steps, dFMDiffs);
+			dFMDiffs.add(new DFMDiff(Operation.EQUAL, a.lines(line1,
+					line1 + 1)));
+			previous1 = line1 + 1;
+			previous2 = line2 + 1;
+		}
+		dFMDiff_patience(a, previous1, end1, b, previous2, end2, refine,
+				deadline, steps, dFMDiffs);
+	}
+
+	/**
+	 * Longest increasing subsequence, by patience sorting.
+	 * 
+	 * @param values
+	 *            Distinct values.
+	 * @param count
+	 *            Number of values used.
+	 * @return Indexes of the subsequence, in increasing order.
+	 */
+	private static int[] patienceSort(int[] values, int count) {
+		// Index of the top card of each pile, and card below it.
+		int[] tops = new int[count];
+		int[] previous = new int[count];
+		int piles = 0;
+		for (int i = 0; i < count; i++) {
+			int low = 0;
+			int high = piles;
+			while (low < high) {
+				int middle = (low + high) >>> 1;
+				if (values[tops[middle]] < values[i]) {
+					low = middle + 1;
+				} else {
+					high = middle;
+				}
+			}
+			previous[i] = low > 0 ? tops[low - 1] : -1;
+			tops[low] = i;
+			if (low == piles) {
+				piles++;
+			}
+		}
+
+		int[] sequence = new int[piles];
+		int index = piles > 0 ? tops[piles - 1] : -1;
+		for (int i = piles - 1; i >= 0; i--) {
+			sequence[i] = index;
+			index = previous[index];
+		}
+		return sequence;
+	}
+
+	/**
+	 * Results of middle snake search.
+	 */
+	private static final int SNAKE_FOUND = 0;
+	private static final int SNAKE_NONE = 1;
+	private static final int SNAKE_OVER_BUDGET = 2;
+
+	/**
+	 * Largest work arrays kept by a thread, larger ones are allocated per call
+	 * so one huge diff doesn't pin memory in every pool thread.
+	 */
+	private static final int BISECT_BUFFER_MAX = 1 << 16;
+
+	/**
+	 * Work arrays of bisect, reused by every call of a thread.
+	 */
+	private static class BisectBuffers {
+		int[] v1 = new int[0];
+		int[] v2 = new int[0];
+		// split point found by last bisect
+		int x;
+		int y;
+	}
+
+	private static final ThreadLocal<BisectBuffers> bisectBuffers = new ThreadLocal<BisectBuffers>() {
+		@Override
+		protected BisectBuffers initialValue() {
+			return new BisectBuffers();
+		}
+	};
+
 	/**
 	 * Find the 'middle snake' of a diff, split the problem in two and return
 	 * the recursively constructed diff. See Myers 1986 paper: An O(ND)
@@ -379,22 +773,219 @@ public class DiffMatchPatch {
 	 *            New string to be diffed.
 	 * @param deadline
 	 *            Time at which to bail if not yet complete.
+	 * @param steps
+	 *            Steps spent by the whole diff, null if unlimited.
 	 * @return LinkedList of Diff objects.
 	 */
 	protected LinkedList<DFMDiff> dFMDiff_bisect(String text1, String text2,
-			long deadline) {
+			long deadline, AtomicLong steps) {
+		LinkedList<DFMDiff> dFMDiffs = new LinkedList<DFMDiff>();
+		dFMDiff_bisect(text1.toCharArray(), 0, text1.length(), text2
+				.toCharArray(), 0, text2.length(), deadline, steps, dFMDiffs);
+		return dFMDiffs;
+	}
+
+	/**
+	 * Diff two ranges of char arrays. Ranges are split at the middle snake
+	 * and diffed recursively, without copying the texts.
+	 * 
+	 * @param text1
+	 *            Old text.
+	 * @param start1
+	 *            Start of range in text1.
+	 * @param end1
+	 *            End of range in text1, exclusive.
+	 * @param text2
+	 *            New text.
+	 * @param start2
+	 *            Start of range in text2.
+	 * @param end2
+	 *            End of range in text2, exclusive.
+	 * @param deadline
+	 *            Time at which to bail if not yet complete.
+	 * @param steps
+	 *            Steps spent by the whole diff, null if unlimited.
+	 * @param dFMDiffs
+	 *            List Diff objects are added to.
+	 */
+	private void dFMDiff_bisect(char[] text1, int start1, int end1,
+			char[] text2, int start2, int end2, long deadline,
+			AtomicLong steps, LinkedList<DFMDiff> dFMDiffs) {
+		// Trim off common prefix.
+		int prefixStart = start1;
+		while (start1 < end1 && start2 < end2
+				&& text1[start1] == text2[start2]) {
+			start1++;
+			start2++;
+		}
+		if (start1 > prefixStart) {
+			dFMDiffs.add(new DFMDiff(Operation.EQUAL, new String(text1,
+					prefixStart, start1 - prefixStart)));
+		}
+
+		// Trim off common suffix.
+		int suffixEnd = end1;
+		while (start1 < end1 && start2 < end2
+				&& text1[end1 - 1] == text2[end2 - 1]) {
+			end1--;
+			end2--;
+		}
+
+		int snake = SNAKE_NONE;
+		if (start1 < end1 && start2 < end2) {
+			snake = dFMDiff_middleSnake(text1, start1, end1, text2, start2,
+					end2, deadline, steps);
+		}
+
+		if (start1 == end1) {
+			if (start2 < end2) {
+				dFMDiffs.add(new DFMDiff(Operation.INSERT, new String(text2,
+						start2, end2 - start2)));
+			}
+		} else if (start2 == end2) {
+			dFMDiffs.add(new DFMDiff(Operation.DELETE, new String(text1,
+					start1, end1 - start1)));
+		} else if (snake == SNAKE_FOUND) {
+			// Buffers are free again before recursion.
+			BisectBuffers buffers = bisectBuffers.get();
+			int x = buffers.x;
+			int y = buffers.y;
+			if (isParallel(end1 - start1 + end2 - start2)) {
+				RecursiveTask<LinkedList<DFMDiff>> task_b = bisectTask(text1,
+						x, end1, text2, y, end2, deadline, steps);
+				dFMDiffs.addAll(forkJoin(bisectTask(text1, start1, x, text2,
+						start2, y, deadline, steps), task_b));
+				dFMDiffs.addAll(task_b.join());
+			} else {
+				dFMDiff_bisect(text1, start1, x, text2, start2, y, deadline,
+						steps, dFMDiffs);
+				dFMDiff_bisect(text1, x, end1, text2, y, end2, deadline,
+						steps, dFMDiffs);
+			}
+		} else if (snake == SNAKE_OVER_BUDGET
+				&& Diff_BudgetFallback == BudgetFallback.ABORT) {
+			throw new BudgetExceededException("diff needs more than "
+					+ Diff_MaxSteps + " steps");
+		} else if (snake == SNAKE_OVER_BUDGET
+				&& Diff_BudgetFallback == BudgetFallback.LINES) {
+			dFMDiffs.addAll(dFMDiff_lines(new String(text1, start1, end1
+					- start1), new String(text2, start2, end2 - start2)));
+		} else {
+			// Diff took too long and hit the deadline or
+			// number of diffs equals number of characters, no commonality at
+			// all.
+			dFMDiffs.add(new DFMDiff(Operation.DELETE, new String(text1,
+					start1, end1 - start1)));
+			dFMDiffs.add(new DFMDiff(Operation.INSERT, new String(text2,
+					start2, end2 - start2)));
+		}
+
+		if (suffixEnd > end1) {
+			dFMDiffs.add(new DFMDiff(Operation.EQUAL, new String(text1, end1,
+					suffixEnd - end1)));
+		}
+	}
+
+	/**
+	 * @param length
+	 *            Total length of texts to diff.
+	 * @return true if halves of this diff are run in parallel.
+	 */
+	private boolean isParallel(int length) {
+		// A shared budget would make the diff depend on scheduling.
+		return Diff_ParallelThreshold > 0 && length >= Diff_ParallelThreshold
+				&& Diff_MaxSteps <= 0;
+	}
+
+	/**
+	 * Run task_b in background while task_a runs in this thread. Caller joins
+	 * task_b.
+	 * 
+	 * @return Result of task_a.
+	 */
+	private static LinkedList<DFMDiff> forkJoin(
+			final RecursiveTask<LinkedList<DFMDiff>> task_a,
+			final RecursiveTask<LinkedList<DFMDiff>> task_b) {
+		if (!ForkJoinTask.inForkJoinPool()) {
+			// Enter the pool first, fork would not use it.
+			return DiffPool.POOL
+					.invoke(new RecursiveTask<LinkedList<DFMDiff>>() {
+						private static final long serialVersionUID = 1L;
+
+						@Override
+						protected LinkedList<DFMDiff> compute() {
+							return forkJoin(task_a, task_b);
+						}
+					});
+		}
+		task_b.fork();
+		return task_a.invoke();
+	}
+
+	private RecursiveTask<LinkedList<DFMDiff>> mainTask(final String text1,
+			final String text2, final boolean checklines, final long deadline,
+			final AtomicLong steps) {
+		return new RecursiveTask<LinkedList<DFMDiff>>() {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected LinkedList<DFMDiff> compute() {
+				return dFMDiff_main(text1, text2, checklines, deadline, steps);
+			}
+		};
+	}
+
+	private RecursiveTask<LinkedList<DFMDiff>> bisectTask(final char[] text1,
+			final int start1, final int end1, final char[] text2,
+			final int start2, final int end2, final long deadline,
+			final AtomicLong steps) {
+		return new RecursiveTask<LinkedList<DFMDiff>>() {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected LinkedList<DFMDiff> compute() {
+				LinkedList<DFMDiff> dFMDiffs = new LinkedList<DFMDiff>();
+				dFMDiff_bisect(text1, start1, end1, text2, start2, end2,
+						deadline, steps, dFMDiffs);
+				return dFMDiffs;
+			}
+		};
+	}
+
+	/**
+	 * Find the 'middle snake' of two non empty ranges. Split point is left in
+	 * thread buffers.
+	 * 
+	 * @return SNAKE_FOUND, SNAKE_NONE if not found before deadline or no
+	 *         commonality at all, SNAKE_OVER_BUDGET if Diff_MaxSteps is
+	 *         exceeded by the whole diff.
+	 */
+	private int dFMDiff_middleSnake(char[] text1, int start1, int end1,
+			char[] text2, int start2, int end2, long deadline,
+			AtomicLong steps) {
 		// Cache the text lengths to prevent multiple calls.
-		int text1_length = text1.length();
-		int text2_length = text2.length();
+		int text1_length = end1 - start1;
+		int text2_length = end2 - start2;
 		int max_d = (text1_length + text2_length + 1) / 2;
 		int v_offset = max_d;
 		int v_length = 2 * max_d;
-		int[] v1 = new int[v_length];
-		int[] v2 = new int[v_length];
-		for (int x = 0; x < v_length; x++) {
-			v1[x] = -1;
-			v2[x] = -1;
+
+		BisectBuffers buffers = bisectBuffers.get();
+		int[] v1;
+		int[] v2;
+		if (v_length > BISECT_BUFFER_MAX) {
+			v1 = new int[v_length];
+			v2 = new int[v_length];
+		} else {
+			if (buffers.v1.length < v_length) {
+				buffers.v1 = new int[v_length];
+				buffers.v2 = new int[v_length];
+			}
+			v1 = buffers.v1;
+			v2 = buffers.v2;
 		}
+		Arrays.fill(v1, 0, v_length, -1);
+		Arrays.fill(v2, 0, v_length, -1);
 		v1[v_offset + 1] = 0;
 		v2[v_offset + 1] = 0;
 		int delta = text1_length - text2_length;
@@ -407,11 +998,19 @@ public class DiffMatchPatch {
 		int k1end = 0;
 		int k2start = 0;
 		int k2end = 0;
+		// Edit graph steps since last check: diagonals visited and snake
+		// moves.
+		long d_steps = 0;
 		for (int d = 0; d < max_d; d++) {
 			// Bail out if deadline is reached.
 			if (System.currentTimeMillis() > deadline) {
 				break;
 			}
+			// Budget is shared, check once per d to limit contention.
+			if (steps != null && steps.addAndGet(d_steps) > Diff_MaxSteps) {
+				return SNAKE_OVER_BUDGET;
+			}
+			d_steps = 0;
 
 			// Walk the front path one step.
 			for (int k1 = -d + k1start; k1 <= d - k1end; k1 += 2) {
@@ -424,11 +1023,13 @@ public class DiffMatchPatch {
 					x1 = v1[k1_offset - 1] + 1;
 				}
 				int y1 = x1 - k1;
+				int snake1 = x1;
 				while (x1 < text1_length && y1 < text2_length
-						&& text1.charAt(x1) == text2.charAt(y1)) {
+						&& text1[start1 + x1] == text2[start2 + y1]) {
 					x1++;
 					y1++;
 				}
+				d_steps += 1 + x1 - snake1;
 				v1[k1_offset] = x1;
 				if (x1 > text1_length) {
 					// Ran off the right of the graph.
@@ -444,8 +1045,9 @@ public class DiffMatchPatch {
 						int x2 = text1_length - v2[k2_offset];
 						if (x1 >= x2) {
 							// Overlap detected.
-							return dFMDiff_bisectSplit(text1, text2, x1, y1,
-									deadline);
+							buffers.x = start1 + x1;
+							buffers.y = start2 + y1;
+							return SNAKE_FOUND;
 						}
 					}
 				}
@@ -462,13 +1064,13 @@ public class DiffMatchPatch {
 					x2 = v2[k2_offset - 1] + 1;
 				}
 				int y2 = x2 - k2;
-				while (x2 < text1_length
-						&& y2 < text2_length
-						&& text1.charAt(text1_length - x2 - 1) == text2
-								.charAt(text2_length - y2 - 1)) {
+				int snake2 = x2;
+				while (x2 < text1_length && y2 < text2_length
+						&& text1[end1 - x2 - 1] == text2[end2 - y2 - 1]) {
 					x2++;
 					y2++;
 				}
+				d_steps += 1 + x2 - snake2;
 				v2[k2_offset] = x2;
 				if (x2 > text1_length) {
 					// Ran off the left of the graph.
@@ -486,52 +1088,15 @@ public class DiffMatchPatch {
 						x2 = text1_length - x2;
 						if (x1 >= x2) {
 							// Overlap detected.
-							return dFMDiff_bisectSplit(text1, text2, x1, y1,
-									deadline);
+							buffers.x = start1 + x1;
+							buffers.y = start2 + y1;
+							return SNAKE_FOUND;
 						}
 					}
 				}
 			}
 		}
-		// Diff took too long and hit the deadline or
-		// number of diffs equals number of characters, no commonality at all.
-		LinkedList<DFMDiff> dFMDiffs = new LinkedList<DFMDiff>();
-		dFMDiffs.add(new DFMDiff(Operation.DELETE, text1));
-		dFMDiffs.add(new DFMDiff(Operation.INSERT, text2));
-		return dFMDiffs;
-	}
-
-	/**
-	 * Given the location of the 'middle snake', split the diff in two parts and
-	 * recurse.
-	 * 
-	 * @param text1
-	 *            Old string to be diffed.
-	 * @param text2
-	 *            New string to be diffed.
-	 * @param x
-	 *            Index of split point in text1.
-	 * @param y
-	 *            Index of split point in text2.
-	 * @param deadline
-	 *            Time at which to bail if not yet complete.
-	 * @return LinkedList of Diff objects.
-	 */
-	private LinkedList<DFMDiff> dFMDiff_bisectSplit(String text1, String text2,
-			int x, int y, long deadline) {
-		String text1a = text1.substring(0, x);
-		String text2a = text2.substring(0, y);
-		String text1b = text1.substring(x);
-		String text2b = text2.substring(y);
-
-		// Compute both diffs serially.
-		LinkedList<DFMDiff> dFMDiffs = dFMDiff_main(text1a, text2a, false,
-				deadline);
-		LinkedList<DFMDiff> diffsb = dFMDiff_main(text1b, text2b, false,
-				deadline);
-
-		dFMDiffs.addAll(diffsb);
-		return dFMDiffs;
+		return SNAKE_NONE;
 	}
 
 	/**
@@ -1683,6 +2248,9 @@ public class DiffMatchPatch {
 	 */
 	protected int match_bitap(String text, String pattern, int loc) {
 		assert (Match_MaxBits == 0 || pattern.length() <= Match_MaxBits) : "Pattern too long for this application.";
+		if (pattern.length() > 32) {
+			return match_bitapWords(text, pattern, loc);
+		}
 
 		// Initialise the alphabet.
 		Map<Character, Integer> s = match_alphabet(pattern);
@@ -1783,6 +2351,158 @@ public class DiffMatchPatch {
 		return best_loc;
 	}
 
+	/**
+	 * Same as match_bitap, with bit vectors of several longs: any pattern
+	 * length. Bit vector of position j is stored at rd[j * words].
+	 * 
+	 * @param text
+	 *            The text to search.
+	 * @param pattern
+	 *            The pattern to search for.
+	 * @param loc
+	 *            The location to search around.
+	 * @return Best match index or -1.
+	 */
+	private int match_bitapWords(String text, String pattern, int loc) {
+		int words = (pattern.length() + 63) >>> 6;
+
+		// Initialise the alphabet.
+		Map<Character, long[]> s = new HashMap<Character, long[]>();
+		for (int i = 0; i < pattern.length(); i++) {
+			long[] mask = s.get(pattern.charAt(i));
+			if (mask == null) {
+				mask = new long[words];
+				s.put(pattern.charAt(i), mask);
+			}
+			int bit = pattern.length() - i - 1;
+			mask[bit >>> 6] |= 1L << (bit & 63);
+		}
+		long[] noMatch = new long[words];
+
+		// Highest score beyond which we give up.
+		double score_threshold = Match_Threshold;
+		// Is there a nearby exact match? (speedup)
+		int best_loc = text.indexOf(pattern, loc);
+		if (best_loc != -1) {
+			score_threshold = Math.min(
+					match_bitapScore(0, best_loc, loc, pattern),
+					score_threshold);
+			// What about in the other direction? (speedup)
+			best_loc = text.lastIndexOf(pattern, loc + pattern.length());
+			if (best_loc != -1) {
+				score_threshold = Math.min(
+						match_bitapScore(0, best_loc, loc, pattern),
+						score_threshold);
+			}
+		}
+
+		// Initialise the bit arrays.
+		int matchWord = (pattern.length() - 1) >>> 6;
+		long matchmask = 1L << ((pattern.length() - 1) & 63);
+		best_loc = -1;
+
+		int bin_min, bin_mid;
+		int bin_max = pattern.length() + text.length();
+		// Both arrays are reused at each error level.
+		long[] rd = null;
+		long[] last_rd = null;
+		for (int d = 0; d < pattern.length(); d++) {
+			// Scan for the best match; each iteration allows for one more
+			// error.
+			// Run a binary search to determine how far from 'loc' we can stray
+			// at this error level.
+			bin_min = 0;
+			bin_mid = bin_max;
+			while (bin_min < bin_mid) {
+				if (match_bitapScore(d, loc + bin_mid, loc, pattern) <= score_threshold) {
+					bin_min = bin_mid;
+				} else {
+					bin_max = bin_mid;
+				}
+				bin_mid = (bin_max - bin_min) / 2 + bin_min;
+			}
+			// Use the result from this iteration as the maximum for the next.
+			bin_max = bin_mid;
+			int start = Math.max(1, loc - bin_mid + 1);
+			int finish = Math.min(loc + bin_mid, text.length())
+					+ pattern.length();
+
+			int length = (finish + 2) * words;
+			if (rd == null) {
+				// First level is the widest.
+				rd = new long[length];
+				last_rd = new long[length];
+			} else {
+				long[] swap = last_rd;
+				last_rd = rd;
+				rd = swap;
+				Arrays.fill(rd, 0, length, 0);
+			}
+			// (1 << d) - 1
+			for (int w = 0; w < words; w++) {
+				int bits = Math.min(64, Math.max(0, d - (w << 6)));
+				rd[(finish + 1) * words + w] = bits == 64 ? -1L
+						: (1L << bits) - 1;
+			}
+
+			for (int j = finish; j >= start; j--) {
+				long[] charMatch;
+				if (text.length() <= j - 1) {
+					// Out of range.
+					charMatch = noMatch;
+				} else {
+					charMatch = s.get(text.charAt(j - 1));
+					if (charMatch == null) {
+						charMatch = noMatch;
+					}
+				}
+				int row = j * words;
+				int next = row + words;
+				// Bits carried from lower words by shifts.
+				long carry = 1;
+				long lastCarry = 1;
+				for (int w = 0; w < words; w++) {
+					long shifted = (rd[next + w] << 1) | carry;
+					carry = rd[next + w] >>> 63;
+					if (d == 0) {
+						// First pass: exact match.
+						rd[row + w] = shifted & charMatch[w];
+					} else {
+						// Subsequent passes: fuzzy match.
+						long last = last_rd[next + w] | last_rd[row + w];
+						rd[row + w] = shifted & charMatch[w]
+								| ((last << 1) | lastCarry)
+								| last_rd[next + w];
+						lastCarry = last >>> 63;
+					}
+				}
+				if ((rd[row + matchWord] & matchmask) != 0) {
+					double score = match_bitapScore(d, j - 1, loc, pattern);
+					// This match will almost certainly be better than any
+					// existing match. But check anyway.
+					if (score <= score_threshold) {
+						// Told you so.
+						score_threshold = score;
+						best_loc = j - 1;
+						if (best_loc > loc) {
+							// When passing loc, don't exceed our current
+							// distance from loc.
+							start = Math.max(1, 2 * loc - best_loc);
+						} else {
+							// Already passed loc, downhill from here on in.
+							break;
+						}
+					}
+				}
+			}
+			if (match_bitapScore(d + 1, loc, loc, pattern) > score_threshold) {
+				// No hope for a (better) match at greater error levels.
+				break;
+			}
+		}
+		return best_loc;
+	}
+
 	/**
 	 * Compute and return the score for a match with e errors and x location.
 	 * 
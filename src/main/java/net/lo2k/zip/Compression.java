@@ -0,0 +1,93 @@
+/*
+ * Copyright 2011 Jrme Wax <jerome.wax@lo2k.net>
+ * http://www.lo2k.net
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.lo2k.zip;
+
+/**
+ * compression method of a patch
+ * 
+ * @author wax
+ * 
+ */
+public enum Compression {
+
+	/**
+	 * deflate, best ratio
+	 */
+	DEFLATE {
+		@Override
+		public byte[] compress(String toCompress, byte[] dictionary) {
+			return ZipUtil.compress(toCompress, dictionary);
+		}
+
+		@Override
+		public String decompress(byte[] compressed, byte[] dictionary) {
+			return ZipUtil.decompress(compressed, dictionary);
+		}
+	},
+
+	/**
+	 * deflate at maximum level, slower to compress, as fast to decompress
+	 */
+	DEFLATE_BEST {
+		@Override
+		public byte[] compress(String toCompress, byte[] dictionary) {
+			return ZipUtil.compress(toCompress, dictionary, 9);
+		}
+
+		@Override
+		public String decompress(byte[] compressed, byte[] dictionary) {
+			return ZipUtil.decompress(compressed, dictionary);
+		}
+	},
+
+	/**
+	 * LZ4 block, faster to compress and decompress
+	 */
+	LZ4 {
+		@Override
+		public byte[] compress(String toCompress, byte[] dictionary) {
+			return LZ4Util.compress(toCompress, dictionary);
+		}
+
+		@Override
+		public String decompress(byte[] compressed, byte[] dictionary) {
+			return LZ4Util.decompress(compressed, dictionary);
+		}
+	};
+
+	/**
+	 * compress a string
+	 * 
+	 * @param toCompress
+	 * @param dictionary
+	 *            preset dictionary, null for none
+	 * @return
+	 */
+	public abstract byte[] compress(String toCompress, byte[] dictionary);
+
+	/**
+	 * decompress a string
+	 * 
+	 * @param compressed
+	 * @param dictionary
+	 *            dictionary used to compress, null for none
+	 * @return
+	 */
+	public abstract String decompress(byte[] compressed, byte[] dictionary);
+
+}
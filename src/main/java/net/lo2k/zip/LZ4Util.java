@@ -0,0 +1,306 @@
+/*
+ * Copyright 2011 Jrme Wax <jerome.wax@lo2k.net>
+ * http://www.lo2k.net
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.lo2k.zip;
+
+import java.io.UnsupportedEncodingException;
+
+/**
+ * fast compression in LZ4 block format. Compression ratio is lower than
+ * deflate but compression and decompression are many times faster.
+ * 
+ * Compressed data starts with the uncompressed length (varint) followed by a
+ * standard LZ4 block. An optional dictionary is used as a prefix of the data,
+ * matches can refer to it.
+ * 
+ * @author wax
+ * 
+ */
+public class LZ4Util {
+
+	private static final String CHARSET = "UTF-8";
+
+	private static final int MIN_MATCH = 4;
+
+	// last bytes of a block are always literals
+	private static final int LAST_LITERALS = 5;
+
+	// no match can start in last bytes of a block
+	private static final int MF_LIMIT = 12;
+
+	private static final int MAX_OFFSET = 65535;
+
+	private static final int HASH_LOG = 12;
+
+	/**
+	 * compress a string
+	 * 
+	 * @param toCompress
+	 * @param dictionary
+	 *            dictionary, null for none
+	 * @return
+	 */
+	public static byte[] compress(String toCompress, byte[] dictionary) {
+		try {
+			return compressBytes(toCompress.getBytes(CHARSET), dictionary);
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * decompress a string compressed by {@link #compress(String, byte[])}
+	 * 
+	 * @param compressed
+	 * @param dictionary
+	 *            dictionary used to compress, null for none
+	 * @return
+	 */
+	public static String decompress(byte[] compressed, byte[] dictionary) {
+		try {
+			return new String(decompressBytes(compressed, dictionary), CHARSET);
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * compress bytes
+	 * 
+	 * @param source
+	 * @param dictionary
+	 *            dictionary, null for none
+	 * @return
+	 */
+	public static byte[] compressBytes(byte[] source, byte[] dictionary) {
+		// only last 64K of dictionary can be reached
+		int prefix = dictionary == null ? 0 : Math.min(dictionary.length,
+				MAX_OFFSET);
+		byte[] in = new byte[prefix + source.length];
+		if (prefix > 0) {
+			System.arraycopy(dictionary, dictionary.length - prefix, in, 0,
+					prefix);
+		}
+		System.arraycopy(source, 0, in, prefix, source.length);
+
+		byte[] out = new byte[5 + source.length + source.length / 255 + 16];
+		int op = writeVarInt(out, 0, source.length);
+
+		int[] table = new int[1 << HASH_LOG];
+		for (int i = 0; i < table.length; i++) {
+			table[i] = -1;
+		}
+		for (int i = 0; i + MIN_MATCH <= prefix; i++) {
+			table[hash(in, i)] = i;
+		}
+
+		int end = in.length;
+		int matchLimit = end - LAST_LITERALS;
+		int mfLimit = end - MF_LIMIT;
+		int anchor = prefix;
+		int pos = prefix;
+
+		while (pos < mfLimit) {
+			int h = hash(in, pos);
+			int ref = table[h];
+			table[h] = pos;
+			if (ref < 0 || pos - ref > MAX_OFFSET
+					|| !equals4(in, ref, pos)) {
+				pos++;
+				continue;
+			}
+
+			// extend match backward into literals
+			while (pos > anchor && ref > 0 && in[pos - 1] == in[ref - 1]) {
+				pos--;
+				ref--;
+			}
+			int length = MIN_MATCH;
+			while (pos + length < matchLimit
+					&& in[ref + length] == in[pos + length]) {
+				length++;
+			}
+
+			op = writeSequence(out, op, in, anchor, pos - anchor, pos - ref,
+					length);
+			pos += length;
+			anchor = pos;
+		}
+
+		op = writeLiterals(out, op, in, anchor, end - anchor);
+		byte[] result = new byte[op];
+		System.arraycopy(out, 0, result, 0, op);
+		return result;
+	}
+
+	/**
+	 * decompress bytes compressed by {@link #compressBytes(byte[], byte[])}
+	 * 
+	 * @param compressed
+	 * @param dictionary
+	 *            dictionary used to compress, null for none
+	 * @return
+	 */
+	public static byte[] decompressBytes(byte[] compressed,
+			byte[] dictionary) {
+		int prefix = dictionary == null ? 0 : Math.min(dictionary.length,
+				MAX_OFFSET);
+		int[] ip = { 0 };
+		int length;
+		try {
+			length = readVarInt(compressed, ip);
+		} catch (IndexOutOfBoundsException e) {
+			throw new IllegalArgumentException("truncated data", e);
+		}
+		// a byte never expands to more than 255 bytes
+		if (length < 0 || length > 255L * compressed.length) {
+			throw new IllegalArgumentException("corrupted data");
+		}
+
+		byte[] out = new byte[prefix + length];
+		if (prefix > 0) {
+			System.arraycopy(dictionary, dictionary.length - prefix, out, 0,
+					prefix);
+		}
+
+		try {
+			int op = prefix;
+			while (true) {
+				int token = compressed[ip[0]++] & 0xFF;
+
+				int literals = readLength(compressed, ip, token >>> 4);
+				System.arraycopy(compressed, ip[0], out, op, literals);
+				ip[0] += literals;
+				op += literals;
+				if (ip[0] == compressed.length) {
+					break;
+				}
+
+				int offset = (compressed[ip[0]] & 0xFF)
+						| (compressed[ip[0] + 1] & 0xFF) << 8;
+				ip[0] += 2;
+				int matchLength = readLength(compressed, ip, token & 0x0F)
+						+ MIN_MATCH;
+				int ref = op - offset;
+				if (offset == 0 || ref < 0 || op + matchLength > out.length) {
+					throw new IllegalArgumentException("corrupted data");
+				}
+				// byte by byte, match can overlap output
+				for (int i = 0; i < matchLength; i++) {
+					out[op++] = out[ref++];
+				}
+			}
+
+			if (op != out.length) {
+				throw new IllegalArgumentException("truncated data");
+			}
+		} catch (IndexOutOfBoundsException e) {
+			throw new IllegalArgumentException("corrupted data", e);
+		}
+
+		if (prefix == 0) {
+			return out;
+		}
+		byte[] result = new byte[length];
+		System.arraycopy(out, prefix, result, 0, length);
+		return result;
+	}
+
+	private static int hash(byte[] data, int pos) {
+		int value = (data[pos] & 0xFF) | (data[pos + 1] & 0xFF) << 8
+				| (data[pos + 2] & 0xFF) << 16 | (data[pos + 3] & 0xFF) << 24;
+		return (value * -1640531535) >>> (32 - HASH_LOG);
+	}
+
+	private static boolean equals4(byte[] data, int i, int j) {
+		return data[i] == data[j] && data[i + 1] == data[j + 1]
+				&& data[i + 2] == data[j + 2] && data[i + 3] == data[j + 3];
+	}
+
+	private static int writeSequence(byte[] out, int op, byte[] in,
+			int literalStart, int literals, int offset, int matchLength) {
+		int matchCode = matchLength - MIN_MATCH;
+		int tokenPos = op++;
+		out[tokenPos] = (byte) ((Math.min(literals, 15) << 4) | Math.min(
+				matchCode, 15));
+		op = writeLength(out, op, literals);
+		System.arraycopy(in, literalStart, out, op, literals);
+		op += literals;
+		out[op++] = (byte) offset;
+		out[op++] = (byte) (offset >>> 8);
+		return writeLength(out, op, matchCode);
+	}
+
+	private static int writeLiterals(byte[] out, int op, byte[] in,
+			int literalStart, int literals) {
+		out[op++] = (byte) (Math.min(literals, 15) << 4);
+		op = writeLength(out, op, literals);
+		System.arraycopy(in, literalStart, out, op, literals);
+		return op + literals;
+	}
+
+	// length above 15 continues in next bytes
+	private static int writeLength(byte[] out, int op, int length) {
+		if (length >= 15) {
+			int remaining = length - 15;
+			while (remaining >= 255) {
+				out[op++] = (byte) 255;
+				remaining -= 255;
+			}
+			out[op++] = (byte) remaining;
+		}
+		return op;
+	}
+
+	private static int readLength(byte[] data, int[] ip, int code) {
+		int length = code;
+		if (code == 15) {
+			int b;
+			do {
+				b = data[ip[0]++] & 0xFF;
+				length += b;
+			} while (b == 255);
+		}
+		return length;
+	}
+
+	private static int writeVarInt(byte[] out, int op, int value) {
+		int v = value;
+		while ((v & ~0x7F) != 0) {
+			out[op++] = (byte) ((v & 0x7F) | 0x80);
+			v >>>= 7;
+		}
+		out[op++] = (byte) v;
+		return op;
+	}
+
+	private static int readVarInt(byte[] data, int[] ip) {
+		int value = 0;
+		int shift = 0;
+		int b;
+		do {
+			if (shift > 28) {
+				throw new IllegalArgumentException("corrupted data");
+			}
+			b = data[ip[0]++] & 0xFF;
+			value |= (b & 0x7F) << shift;
+			shift += 7;
+		} while ((b & 0x80) != 0);
+		return value;
+	}
+
+}
@@ -17,63 +17,206 @@
 
 package net.lo2k.zip;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
-import java.util.zip.ZipOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 public class ZipUtil {
-	public static String zip(String toCompress) {
-		ZipOutputStream zos = null;
+
+	private static final String CHARSET = "UTF-8";
+
+	private static final int LEVEL = 5;
+
+	private static final String BASE64 = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+
+	// deflater and inflater are expensive to create, one per thread
+	private static final ThreadLocal<Deflater> deflaters = new ThreadLocal<Deflater>() {
+		@Override
+		protected Deflater initialValue() {
+			return new Deflater(LEVEL);
+		}
+	};
+
+	private static final ThreadLocal<Inflater> inflaters = new ThreadLocal<Inflater>() {
+		@Override
+		protected Inflater initialValue() {
+			return new Inflater();
+		}
+	};
+
+	/**
+	 * compress a string in a zlib stream, deflate with header and checksum
+	 * 
+	 * @param toCompress
+	 * @return
+	 */
+	public static byte[] compress(String toCompress) {
+		return compress(toCompress, null);
+	}
+
+	/**
+	 * compress a string in a zlib stream, deflate with header and checksum
+	 * 
+	 * @param toCompress
+	 * @param dictionary
+	 *            preset dictionary, null for none
+	 * @return
+	 */
+	public static byte[] compress(String toCompress, byte[] dictionary) {
+		return compress(toCompress, dictionary, LEVEL);
+	}
+
+	/**
+	 * compress a string in a zlib stream, deflate with header and checksum
+	 * 
+	 * @param toCompress
+	 * @param dictionary
+	 *            preset dictionary, null for none
+	 * @param level
+	 *            deflate level, from 1 (fast) to 9 (best)
+	 * @return
+	 */
+	public static byte[] compress(String toCompress, byte[] dictionary,
+			int level) {
+		byte[] input;
 		try {
+			input = toCompress.getBytes(CHARSET);
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+
+		Deflater deflater = deflaters.get();
+		deflater.reset();
+		deflater.setLevel(level);
+		if (dictionary != null) {
+			deflater.setDictionary(dictionary);
+		}
+		deflater.setInput(input);
+		deflater.finish();
 
-			final ByteArrayOutputStream out = new ByteArrayOutputStream();
-			final byte[] ba = toCompress.getBytes();
-			zos = new ZipOutputStream(out);
-			zos.setLevel(5);
-			zos.setMethod(ZipOutputStream.DEFLATED);
-			final ZipEntry ze = new ZipEntry("result");
-			ze.setSize(ba.length);
-			zos.putNextEntry(ze);
-			zos.write(ba);
-			zos.closeEntry();
-			zos.close();
-
-			// res = out.toByteArray();
-			return out.toString("ISO-8859-1");
-		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+		byte[] buffer = new byte[input.length + 64];
+		int length = 0;
+		while (!deflater.finished()) {
+			if (length == buffer.length) {
+				buffer = resize(buffer, buffer.length * 2);
+			}
+			length += deflater.deflate(buffer, length, buffer.length - length);
 		}
+		return resize(buffer, length);
+	}
 
-		return "";
+	/**
+	 * decompress a string compressed with {@link #compress(String)}
+	 * 
+	 * @param compressed
+	 * @return
+	 */
+	public static String decompress(byte[] compressed) {
+		return decompress(compressed, null);
 	}
 
-	public static String unZip(final String result) {
-		ByteArrayOutputStream fout = null;
+	/**
+	 * decompress a string compressed with {@link #compress(String, byte[])}
+	 * 
+	 * @param compressed
+	 * @param dictionary
+	 *            dictionary used to compress, null for none
+	 * @return
+	 */
+	public static String decompress(byte[] compressed, byte[] dictionary) {
+		Inflater inflater = inflaters.get();
+		inflater.reset();
+		inflater.setInput(compressed);
+
+		byte[] buffer = new byte[compressed.length * 4 + 64];
+		int length = 0;
 		try {
-			final ByteArrayInputStream in = new ByteArrayInputStream(
-					result.getBytes("ISO-8859-1"));
-			final ZipInputStream zin = new ZipInputStream(in);
-
-			while ((zin.getNextEntry()) != null) {
-				// System.out.println("Unzipping " + ze.getName());
-				fout = new ByteArrayOutputStream();
-				for (int c = zin.read(); c != -1; c = zin.read()) {
-					fout.write(c);
+			while (!inflater.finished()) {
+				if (length == buffer.length) {
+					buffer = resize(buffer, buffer.length * 2);
+				}
+				int read = inflater.inflate(buffer, length, buffer.length
+						- length);
+				if (read == 0 && inflater.needsDictionary()) {
+					if (dictionary == null) {
+						throw new IllegalArgumentException(
+								"missing preset dictionary");
+					}
+					inflater.setDictionary(dictionary);
+				} else if (read == 0 && inflater.needsInput()
+						&& !inflater.finished()) {
+					throw new IllegalArgumentException("truncated data");
+				}
+				length += read;
+			}
+			return new String(buffer, 0, length, CHARSET);
+		} catch (DataFormatException e) {
+			throw new IllegalArgumentException(e);
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * encode bytes in base64, to save them in a text file
+	 * 
+	 * @param bytes
+	 * @return
+	 */
+	public static String toBase64(byte[] bytes) {
+		StringBuilder result = new StringBuilder((bytes.length + 2) / 3 * 4);
+		for (int i = 0; i < bytes.length; i += 3) {
+			int remaining = Math.min(3, bytes.length - i);
+			int block = (bytes[i] & 0xFF) << 16;
+			if (remaining > 1) {
+				block |= (bytes[i + 1] & 0xFF) << 8;
+			}
+			if (remaining > 2) {
+				block |= bytes[i + 2] & 0xFF;
+			}
+			for (int j = 0; j < 4; j++) {
+				if (j <= remaining) {
+					result.append(BASE64.charAt((block >> (18 - 6 * j)) & 0x3F));
+				} else {
+					result.append('=');
 				}
-				zin.closeEntry();
-				fout.close();
-				return fout.toString();
 			}
-			zin.close();
-		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
 		}
+		return result.toString();
+	}
+
+	/**
+	 * decode bytes encoded by {@link #toBase64(byte[])}
+	 * 
+	 * @param text
+	 * @return
+	 */
+	public static byte[] fromBase64(String text) {
+		String data = text.replaceAll("[\\s=]", "");
+		byte[] result = new byte[data.length() * 3 / 4];
+		int block = 0;
+		int bits = 0;
+		int length = 0;
+		for (int i = 0; i < data.length(); i++) {
+			int value = BASE64.indexOf(data.charAt(i));
+			if (value < 0) {
+				throw new IllegalArgumentException("invalid base64 character "
+						+ data.charAt(i));
+			}
+			block = (block << 6) | value;
+			bits += 6;
+			if (bits >= 8) {
+				bits -= 8;
+				result[length++] = (byte) (block >> bits);
+			}
+		}
+		return result;
+	}
 
-		return "";
+	private static byte[] resize(byte[] buffer, int length) {
+		byte[] result = new byte[length];
+		System.arraycopy(buffer, 0, result, 0, Math.min(length, buffer.length));
+		return result;
 	}
 }
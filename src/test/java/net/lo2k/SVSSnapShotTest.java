@@ -17,21 +17,57 @@
 package net.lo2k;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.Serializable;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.Date;
+import java.util.EnumMap;
+import java.util.EnumSet;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Random;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.Vector;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import junit.framework.Test;
 import junit.framework.TestCase;
 import junit.framework.TestSuite;
+import net.lo2k.patcher.SVSBinaryCodec;
+import net.lo2k.patcher.SVSBudgetPolicy;
+import net.lo2k.patcher.SVSByteDeltaEngine;
+import net.lo2k.patcher.SVSCodec;
+import net.lo2k.patcher.SVSCompressionDictionary;
+import net.lo2k.patcher.SVSDiffBudgetException;
+import net.lo2k.patcher.SVSExactDeltaEngine;
+import net.lo2k.patcher.SVSJavaCodec;
 import net.lo2k.patcher.SVSPatch;
+import net.lo2k.patcher.SVSPatchProgram;
+import net.lo2k.patcher.SVSPatienceDeltaEngine;
 import net.lo2k.patcher.SVSPatcher;
+import net.lo2k.patcher.SVSYamlCodec;
+import net.lo2k.repository.SVSCostStoragePolicy;
+import net.lo2k.repository.SVSKeyframePolicy;
 import net.lo2k.repository.SVSRepository;
 import net.lo2k.repository.SVSRepositoryImpl;
+import net.lo2k.repository.snapshot.SVSDeltaSnapshot;
+import net.lo2k.repository.snapshot.SVSSnapshot;
+import net.lo2k.repository.snapshot.SVSSnapshotRepository;
+import net.lo2k.thirdpart.diff.DiffMatchPatch;
+import net.lo2k.zip.Compression;
+import net.lo2k.zip.LZ4Util;
 
 public class SVSSnapShotTest extends TestCase {
 
@@ -278,6 +314,1090 @@ public class SVSSnapShotTest extends TestCase {
 		assertEquals(beacon.restoreSnapShot(expanded), beacon
 				.restoreObjectBeforeDate(d));
 
+		assertEquals(2, beacon.getRevisionsBetween(new Date(0), d).size());
+		assertEquals(3, beacon.getRevisionsBetween(
+				new Date(d.getTime() + 1), new Date()).size());
+
+	}
+
+	/**
+	 * test that keyframes bound delta chain length
+	 */
+	public void testKeyframe() {
+		SVSRepositoryImpl<String> repository = new SVSRepositoryImpl<String>();
+		repository.setStoragePolicy(new SVSKeyframePolicy(3, 0));
+
+		String text = "";
+		for (int i = 0; i < 30; i++) {
+			text += "line number " + i + "\n";
+		}
+
+		LinkedList<String> revs = new LinkedList<String>();
+		LinkedList<String> texts = new LinkedList<String>();
+		for (int i = 0; i < 10; i++) {
+			text += "modification " + i + "\n";
+			texts.add(text);
+			revs.add(repository.makeSnapshot(text));
+		}
+
+		// no more than 3 deltas before a complete snapshot
+		int depth = 0;
+		for (String rev : repository.getHistory()) {
+			if (repository.getRepository().get(rev) instanceof SVSDeltaSnapshot<?>) {
+				depth++;
+				assertTrue(depth <= 3);
+			} else {
+				depth = 0;
+			}
+		}
+
+		for (int i = 0; i < revs.size(); i++) {
+			assertEquals(texts.get(i), repository.restoreSnapShot(revs.get(i)));
+		}
+
+		// size is maintained on each put
+		int size = 0;
+		for (SVSSnapshot<String> snapshot : repository.getRepository()
+				.getHistory().values()) {
+			size += snapshot.getSize();
+		}
+		assertEquals(size, repository.getSize());
+	}
+
+	/**
+	 * deprecated setter still configures the storage policy
+	 */
+	@SuppressWarnings("deprecation")
+	public void testKeyframePolicyAdapter() {
+		SVSRepositoryImpl<String> repository = new SVSRepositoryImpl<String>();
+		SVSKeyframePolicy policy = new SVSKeyframePolicy(3, 0);
+		repository.setKeyframePolicy(policy);
+		assertSame(policy, repository.getStoragePolicy());
+	}
+
+	/**
+	 * test restore at the end of a long delta chain
+	 */
+	public void testLongChain() {
+		SVSRepository<String> repository = new SVSRepositoryImpl<String>();
+
+		String text = "";
+		for (int i = 0; i < 30; i++) {
+			text += "line number " + i + "\n";
+		}
+		String firstRev = repository.makeSnapshot(text);
+		String firstText = text;
+
+		for (int i = 0; i < 300; i++) {
+			text += "modification " + i + "\n";
+			repository.makeSnapshot(text);
+		}
+
+		assertEquals(firstText, repository.restoreSnapShot(firstRev));
+	}
+
+	/**
+	 * test restore through revision cache
+	 */
+	public void testCache() {
+		SVSRepositoryImpl<String> repository = new SVSRepositoryImpl<String>();
+		repository.enableCache(2000);
+
+		String text = "";
+		for (int i = 0; i < 30; i++) {
+			text += "line number " + i + "\n";
+		}
+
+		LinkedList<String> revs = new LinkedList<String>();
+		LinkedList<String> texts = new LinkedList<String>();
+		for (int i = 0; i < 20; i++) {
+			text += "modification " + i + "\n";
+			texts.add(text);
+			revs.add(repository.makeSnapshot(text));
+		}
+
+		for (int i = revs.size() - 1; i >= 0; i--) {
+			assertEquals(texts.get(i), repository.restoreSnapShot(revs.get(i)));
+			assertTrue(repository.getRepository().getCache().getSize() <= 2000);
+		}
+		assertEquals(texts.get(0), repository.restoreSnapShot(revs.get(0)));
+	}
+
+	/**
+	 * test versioning with each codec
+	 */
+	public void testCodecs() {
+		SVSCodec[] codecs = { new SVSYamlCodec(), new SVSJavaCodec(),
+				new SVSBinaryCodec() };
+
+		for (SVSCodec codec : codecs) {
+			SVSRepository<Person> repository = new SVSRepositoryImpl<Person>(
+					codec);
+
+			Person p = new Person();
+			p.setName("Bob");
+			p.setAge(17);
+			p.setTel("1545645646");
+			p.setAdress("3 rue du gymnase\n89245 Bidonville");
+			String rev1 = repository.makeSnapshot(p);
+
+			Person p1 = new Person();
+			p1.setName("Bob");
+			p1.setAge(18);
+			p1.setTel("1545645646");
+			p1.setAdress("3 rue du gymnase\n33333 Bidonville");
+			repository.makeSnapshot(p1);
+
+			Person p2 = new Person();
+			p2.setName("Bob");
+			p2.setAge(18);
+			p2.setTel("33355566");
+			p2.setAdress("3 rue du gymnase\n33333 Bidonville");
+			repository.makeSnapshot(p2);
+
+			Person restored = repository.restoreSnapShot(rev1);
+			assertEquals(17, restored.getAge());
+			assertEquals("1545645646", restored.getTel());
+			assertEquals("3 rue du gymnase\n89245 Bidonville", restored
+					.getAdress());
+			assertEquals("33355566", repository.getLatestSnapshot().getTel());
+		}
+	}
+
+	/**
+	 * each commit encodes its object once, for hash, size and diff
+	 */
+	public void testSingleEncode() {
+		CountingCodec codec = new CountingCodec();
+		SVSRepositoryImpl<Person> repository = new SVSRepositoryImpl<Person>(
+				codec);
+		// previous heads are kept as keyframes or deltas
+		repository.setStoragePolicy(new SVSKeyframePolicy(3, 0));
+
+		List<Person> persons = new ArrayList<Person>();
+		for (int i = 0; i < 40; i++) {
+			Person p = new Person();
+			p.setName("Bob");
+			p.setAge(i % 5);
+			p.setTel("1545645646");
+			p.setAdress(i + " rue du gymnase\n89245 Bidonville");
+			persons.add(p);
+		}
+
+		for (int i = 0; i < 20; i++) {
+			repository.makeSnapshot(persons.get(i));
+			assertEquals(i + 1, codec.encodes.get());
+		}
+		repository.makeSnapshots(persons.subList(20, 30));
+		assertEquals(30, codec.encodes.get());
+		for (int i = 30; i < 40; i++) {
+			repository.makeSnapshotAsync(persons.get(i));
+		}
+		assertEquals(40, repository.getHistory().size());
+		assertEquals(40, codec.encodes.get());
+	}
+
+	private static class CountingCodec extends SVSBinaryCodec {
+		private static final long serialVersionUID = 1L;
+		final AtomicInteger encodes = new AtomicInteger();
+
+		@Override
+		public String encode(Object object) {
+			encodes.incrementAndGet();
+			return super.encode(object);
+		}
+	}
+
+	private enum Color {
+		RED, GREEN, BLUE, NONE
+	}
+
+	private static class Base implements Serializable {
+		private static final long serialVersionUID = 1L;
+		String name;
+	}
+
+	private static class Derived extends Base {
+		private static final long serialVersionUID = 1L;
+		// hides name of Base
+		String name;
+	}
+
+	private static class ReverseComparator implements Comparator<String>,
+			Serializable {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		public int compare(String s1, String s2) {
+			return s2.compareTo(s1);
+		}
+	}
+
+	private static class Holder implements Serializable {
+		private static final long serialVersionUID = 1L;
+		EnumSet<Color> colors;
+		EnumSet<Color> noColor;
+		EnumMap<Color, String> names;
+		EnumMap<Color, String> noName;
+		TreeSet<String> reversed;
+		TreeMap<String, Integer> ignoreCase;
+	}
+
+	/**
+	 * binary codec keeps hidden fields, enum collections and comparators
+	 */
+	public void testBinaryCodecTypes() {
+		SVSBinaryCodec codec = new SVSBinaryCodec();
+
+		Derived derived = new Derived();
+		((Base) derived).name = "base";
+		derived.name = "derived";
+		Derived decodedDerived = (Derived) codec.decode(codec.encode(derived));
+		assertEquals("base", ((Base) decodedDerived).name);
+		assertEquals("derived", decodedDerived.name);
+
+		Holder holder = new Holder();
+		holder.colors = EnumSet.of(Color.RED, Color.BLUE);
+		holder.noColor = EnumSet.noneOf(Color.class);
+		holder.names = new EnumMap<Color, String>(Color.class);
+		holder.names.put(Color.GREEN, "green");
+		holder.noName = new EnumMap<Color, String>(Color.class);
+		holder.reversed = new TreeSet<String>(new ReverseComparator());
+		holder.reversed.addAll(Arrays.asList("a", "c", "b"));
+		holder.ignoreCase = new TreeMap<String, Integer>(
+				String.CASE_INSENSITIVE_ORDER);
+		holder.ignoreCase.put("Key", 1);
+
+		Holder decoded = (Holder) codec.decode(codec.encode(holder));
+		assertEquals(holder.colors, decoded.colors);
+		assertEquals(holder.noColor, decoded.noColor);
+		decoded.noColor.add(Color.NONE);
+		assertEquals(holder.names, decoded.names);
+		assertEquals(holder.noName, decoded.noName);
+		decoded.noName.put(Color.NONE, "none");
+		assertEquals(Arrays.asList("c", "b", "a"), new ArrayList<String>(
+				decoded.reversed));
+		decoded.reversed.add("d");
+		assertEquals("d", decoded.reversed.first());
+		assertEquals(Integer.valueOf(1), decoded.ignoreCase.get("KEY"));
+
+		// lone surrogates and supplementary chars are kept
+		String surrogates = "\ud800 lone \udc00 \ud83d\ude00";
+		assertEquals(surrogates, codec.decode(codec.encode(surrogates)));
+		derived.name = surrogates;
+		decodedDerived = (Derived) codec.decode(codec.encode(derived));
+		assertEquals(surrogates, decodedDerived.name);
+	}
+
+	/**
+	 * size and revision of complete snapshots survive a reload with each
+	 * non-yaml codec
+	 */
+	public void testCodecsReload() throws IOException {
+		SVSCodec[] codecs = { new SVSJavaCodec(), new SVSBinaryCodec() };
+
+		for (SVSCodec codec : codecs) {
+			SVSRepositoryImpl<Person> repository = new SVSRepositoryImpl<Person>(
+					codec);
+			Person p = new Person();
+			p.setName("Bob");
+			p.setAdress("3 rue du gymnase\n89245 Bidonville");
+			LinkedList<String> revs = new LinkedList<String>();
+			for (int i = 0; i < 5; i++) {
+				p.setAge(i);
+				revs.add(repository.makeSnapshot(p));
+			}
+
+			File file = File.createTempFile("svs", ".yml.gz");
+			try {
+				repository.saveToFile(file);
+				SVSRepositoryImpl<Person> loaded = repository
+						.loadFromFile(file);
+				SVSSnapshot<Person> head = loaded.getRepository().get(
+						revs.getLast());
+				assertEquals(revs.getLast(), head.getRevisionNumber());
+				assertEquals(repository.getRepository().get(revs.getLast())
+						.getSize(), head.getSize());
+				assertEquals(repository.getSize(), loaded.getSize());
+
+				// head is diffed against a reloaded one
+				p.setAge(5);
+				String rev = loaded.makeSnapshot(p);
+				assertEquals(repository.makeSnapshot(p), rev);
+				for (int i = 0; i < revs.size(); i++) {
+					assertEquals(i, loaded.restoreSnapShot(revs.get(i))
+							.getAge());
+				}
+				assertEquals(5, loaded.getLatestSnapshot().getAge());
+			} finally {
+				file.delete();
+			}
+		}
+	}
+
+	/**
+	 * test binary delta engine
+	 */
+	public void testByteDelta() {
+		SVSByteDeltaEngine engine = new SVSByteDeltaEngine();
+
+		String text = "";
+		for (int i = 0; i < 200; i++) {
+			text += "line number " + i + "\n";
+		}
+		String modified = "head\n" + text.replace("number 42", "number 4242")
+				.substring(100) + "tail ";
+
+		String delta = engine.diff(text, modified);
+		assertTrue(delta.length() < modified.length() / 10);
+		assertEquals(modified, engine.patch(text, delta));
+		assertEquals(text, engine.patch(modified, engine.diff(modified, text)));
+		assertEquals("", engine.patch(text, engine.diff(text, "")));
+
+		// delta can't be applied on another source
+		assertNull(engine.patch(modified, delta));
+
+		// malformed or truncated delta is rejected
+		for (int i = 0; i < delta.length(); i++) {
+			String patched = engine.patch(text, delta.substring(0, i));
+			assertFalse(modified.equals(patched));
+		}
+		assertNull(engine.patch(text, delta + "\u00ff\u00ff\u00ff\u00ff\u00ff"));
+
+		// and surfaces as an exception when restoring
+		SVSPatcher<String> patcher = new SVSPatcher<String>();
+		String[] corrupted = { delta.substring(0, delta.length() / 2),
+				delta + "\u00ff\u00ff\u00ff\u00ff\u00ff" };
+		for (String corrupt : corrupted) {
+			try {
+				patcher.patchString(text, new SVSPatch<String>(corrupt,
+						engine));
+				fail("corrupt delta applied");
+			} catch (IllegalStateException e) {
+				// expected
+			}
+		}
+
+		// lone surrogates and supplementary chars are kept
+		String surrogates = text + "\ud800 lone \udc00 \ud83d\ude00";
+		String surrogatesModified = surrogates.replace("lone", "\ud801");
+		assertEquals(surrogatesModified, engine.patch(surrogates, engine.diff(
+				surrogates, surrogatesModified)));
+
+		SVSRepository<String> repository = new SVSRepositoryImpl<String>(
+				new SVSBinaryCodec(), engine);
+		String firstRev = repository.makeSnapshot(text);
+		for (int i = 0; i < 50; i++) {
+			repository.makeSnapshot(text + "modification " + i);
+		}
+		assertEquals(text, repository.restoreSnapShot(firstRev));
+	}
+
+	public void testExactDelta() {
+		SVSExactDeltaEngine engine = new SVSExactDeltaEngine();
+
+		String text = "first line\nsecond line %\nthird line\n";
+		String modified = "first line\nsecond modified line +\nthird line\n\u00e9";
+
+		String delta = engine.diff(text, modified);
+		assertEquals(modified, engine.patch(text, delta));
+		assertEquals(text, engine.patch(modified, engine.diff(modified, text)));
+
+		// no fuzzy matching, delta can't be applied on another source
+		assertNull(engine.patch(modified, delta));
+		// nor on a source of same length, checked by checksum
+		assertNull(engine.patch(text.replace("first", "fIrst"), delta));
+		SVSPatcher<String> patcher = new SVSPatcher<String>();
+		try {
+			patcher.patchString(modified, new SVSPatch<String>(delta, engine));
+			fail("patch applied on another source");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+
+		// inserts are lossless, lone surrogates included
+		String surrogates = text + "\ud800 lone \udc00\t\u20ac";
+		assertEquals(surrogates, engine.patch(text, engine.diff(text,
+				surrogates)));
+
+		// deltas without checksum, inserts url encoded
+		assertEquals("abcx\u00e9 +", engine.patch("abcde",
+				"=3\t-2\t+x%C3%A9%20%2B"));
+
+		// patch is decoded once and applied many times
+		SVSPatch<String> patch = new SVSPatch<String>(delta, engine);
+		SVSPatchProgram program = patch.compile(null);
+		assertSame(program, patch.compile(null));
+		assertEquals(modified, program.apply(text));
+		assertEquals(modified, program.apply(text));
+	}
+
+	public void testDictionary() throws IOException {
+		String text = "";
+		for (int i = 0; i < 100; i++) {
+			text += "key" + i + ": value " + i + "\n";
+		}
+
+		SVSCompressionDictionary dictionary = SVSCompressionDictionary.train(
+				Arrays.asList(text, text + "other: 1\n"), 1);
+		String delta = new SVSExactDeltaEngine().diff(text, text
+				+ "key42: value 42\n");
+		SVSPatch<String> plain = new SVSPatch<String>(delta);
+		SVSPatch<String> preset = new SVSPatch<String>(delta, null, dictionary);
+		assertTrue(preset.getSize() <= plain.getSize());
+		assertEquals(delta, preset.getPatch());
+
+		SVSRepositoryImpl<String> repository = new SVSRepositoryImpl<String>();
+		String firstRev = repository.makeSnapshot(text);
+		for (int i = 0; i < 10; i++) {
+			repository.makeSnapshot(text + "modification " + i);
+			if (i == 5) {
+				repository.trainDictionary(5);
+			}
+		}
+
+		// old deltas stay decodable after a new training and a reload
+		repository.trainDictionary(5);
+		File file = File.createTempFile("svs", ".yml.gz");
+		try {
+			repository.saveToFile(file);
+			SVSRepositoryImpl<String> loaded = repository.loadFromFile(file);
+			assertEquals(text, loaded.restoreSnapShot(firstRev));
+			assertEquals(text + "modification 7", loaded.restoreSnapShot(loaded
+					.getHistory().get(8)));
+		} finally {
+			file.delete();
+		}
+	}
+
+	public void testLZ4() {
+		Random random = new Random(42);
+		StringBuilder randomText = new StringBuilder();
+		for (int i = 0; i < 5000; i++) {
+			randomText.append((char) (32 + random.nextInt(200)));
+		}
+		String text = "";
+		for (int i = 0; i < 300; i++) {
+			text += "key" + (i % 7) + ": aaaaaaaaaaaaaaaaaaaaaaa " + i + "\n";
+		}
+
+		byte[] dictionary = text.substring(0, 500).getBytes();
+		for (String sample : new String[] { "", "a", "abcdabcdabcdabcdabcd",
+				randomText.toString(), text }) {
+			assertEquals(sample, LZ4Util.decompress(LZ4Util.compress(sample,
+					null), null));
+			assertEquals(sample, LZ4Util.decompress(LZ4Util.compress(sample,
+					dictionary), dictionary));
+		}
+		assertTrue(LZ4Util.compress(text, null).length < text.length() / 4);
+
+		// empty, truncated or corrupted data is rejected
+		byte[] compressed = LZ4Util.compressBytes(text.getBytes(), null);
+		List<byte[]> corrupted = new ArrayList<byte[]>();
+		corrupted.add(new byte[] { (byte) 0x80 });
+		corrupted.add(new byte[] { -1, -1, -1, -1, -1, 1 });
+		for (int i = 0; i < compressed.length; i += 7) {
+			byte[] truncated = new byte[i];
+			System.arraycopy(compressed, 0, truncated, 0, i);
+			corrupted.add(truncated);
+		}
+		for (byte[] data : corrupted) {
+			try {
+				LZ4Util.decompressBytes(data, null);
+				fail("corrupted data decompressed");
+			} catch (IllegalArgumentException e) {
+				// expected
+			}
+		}
+
+		SVSRepositoryImpl<String> repository = new SVSRepositoryImpl<String>();
+		repository.getRepository().setCompression(Compression.LZ4);
+		String firstRev = repository.makeSnapshot(text);
+		for (int i = 0; i < 20; i++) {
+			repository.makeSnapshot(text + "modification " + i);
+		}
+		assertEquals(text, repository.restoreSnapShot(firstRev));
+	}
+
+	/**
+	 * test storage chosen by cost policy
+	 */
+	public void testStoragePolicy() {
+		SVSRepositoryImpl<String> repository = new SVSRepositoryImpl<String>();
+		repository.setStoragePolicy(new SVSCostStoragePolicy(16, 3));
+
+		String text = "";
+		for (int i = 0; i < 30; i++) {
+			text += "line number " + i + "\n";
+		}
+
+		LinkedList<String> revs = new LinkedList<String>();
+		LinkedList<String> texts = new LinkedList<String>();
+		for (int i = 0; i < 60; i++) {
+			text += "modification " + i + "\n";
+			texts.add(text);
+			revs.add(repository.makeSnapshot(text));
+			if (i == 30) {
+				// hot revision
+				for (int j = 0; j < 3; j++) {
+					repository.getLatestSnapshot();
+				}
+			}
+		}
+
+		SVSSnapshotRepository<String> snapshots = repository.getRepository();
+		assertTrue(snapshots.get(revs.get(30)) instanceof SVSDeltaSnapshot<?>);
+		assertNotNull(snapshots.getCompleteCopy(revs.get(30)));
+
+		// restore cost grows with chain, deltas stop before the end
+		int depth = 0;
+		int maxDepth = 0;
+		for (String rev : repository.getHistory()) {
+			if (snapshots.get(rev) instanceof SVSDeltaSnapshot<?>
+					&& snapshots.getCompleteCopy(rev) == null) {
+				depth++;
+				maxDepth = Math.max(depth, maxDepth);
+			} else {
+				depth = 0;
+			}
+		}
+		assertTrue(maxDepth < 59);
+		assertSizeRecounted(snapshots);
+
+		for (int i = 0; i < revs.size(); i++) {
+			assertEquals(texts.get(i), repository.restoreSnapShot(revs.get(i)));
+		}
+
+		// size is kept up to date by repack too
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			int repackedSize = repository.repack(executor, 4, 0).get()
+					.intValue();
+			assertEquals(repackedSize, repository.getSize());
+		} catch (Exception e) {
+			throw new IllegalStateException(e);
+		} finally {
+			executor.shutdown();
+		}
+		assertSizeRecounted(repository.getRepository());
+		for (int i = 0; i < revs.size(); i++) {
+			assertEquals(texts.get(i), repository.restoreSnapShot(revs.get(i)));
+		}
+	}
+
+	/**
+	 * size kept on each change of history is the size of all snapshots and
+	 * complete copies
+	 */
+	private static void assertSizeRecounted(
+			SVSSnapshotRepository<String> snapshots) {
+		int size = 0;
+		for (SVSSnapshot<String> snapshot : snapshots.getHistory().values()) {
+			size += snapshot.getSize();
+		}
+		for (SVSSnapshot<String> snapshot : snapshots.getCompleteCopies()
+				.values()) {
+			size += snapshot.getSize();
+		}
+		assertEquals(size, snapshots.getSize());
+	}
+
+	/**
+	 * test logarithmic restore depth with skip-deltas
+	 */
+	public void testSkipDeltas() {
+		SVSRepositoryImpl<String> repository = new SVSRepositoryImpl<String>();
+		repository.setStoragePolicy(new SVSKeyframePolicy());
+		repository.setSkipDeltas(true);
+
+		String text = "";
+		for (int i = 0; i < 30; i++) {
+			text += "line number " + i + "\n";
+		}
+
+		LinkedList<String> revs = new LinkedList<String>();
+		LinkedList<String> texts = new LinkedList<String>();
+		for (int i = 0; i < 300; i++) {
+			text += "modification " + i + "\n";
+			texts.add(text);
+			revs.add(repository.makeSnapshot(text));
+		}
+
+		// count patches to apply for each revision
+		SVSSnapshotRepository<String> snapshots = repository.getRepository();
+		for (String rev : revs) {
+			int hops = 0;
+			SVSSnapshot<String> snapshot = snapshots.get(rev);
+			while (snapshot instanceof SVSDeltaSnapshot<?>) {
+				hops++;
+				snapshot = snapshots.get(((SVSDeltaSnapshot<String>) snapshot)
+						.getFutureRev());
+			}
+			assertTrue(hops <= 18);
+		}
+
+		for (int i = 0; i < revs.size(); i++) {
+			assertEquals(texts.get(i), repository.restoreSnapShot(revs.get(i)));
+		}
+	}
+
+	/**
+	 * test delta base chosen by similarity when object toggles between
+	 * configurations
+	 */
+	public void testSimilarBase() {
+		String[] configurations = new String[3];
+		for (int c = 0; c < configurations.length; c++) {
+			configurations[c] = "";
+			for (int i = 0; i < 40; i++) {
+				configurations[c] += "option" + i + ": " + (i * 7 + c * 13)
+						% 50 + "\n";
+			}
+		}
+
+		int[] sizes = new int[2];
+		for (int window = 0; window < 2; window++) {
+			SVSRepositoryImpl<String> repository = new SVSRepositoryImpl<String>();
+			repository.setStoragePolicy(new SVSKeyframePolicy(10, 0));
+			repository.setSimilarityWindow(window * 4);
+
+			LinkedList<String> revs = new LinkedList<String>();
+			LinkedList<String> texts = new LinkedList<String>();
+			for (int i = 0; i < 30; i++) {
+				String text = configurations[i % 3] + "step: " + i + "\n";
+				texts.add(text);
+				revs.add(repository.makeSnapshot(text));
+			}
+			for (int i = 0; i < revs.size(); i++) {
+				assertEquals(texts.get(i), repository.restoreSnapShot(revs
+						.get(i)));
+			}
+			sizes[window] = repository.getSize();
+		}
+		assertTrue(sizes[1] < sizes[0]);
+	}
+
+	/**
+	 * test repack in background while new revisions are made
+	 */
+	public void testRepack() throws Exception {
+		String[] configurations = new String[3];
+		for (int c = 0; c < configurations.length; c++) {
+			configurations[c] = "";
+			for (int i = 0; i < 40; i++) {
+				configurations[c] += "option" + i + ": " + (i * 7 + c * 13)
+						% 50 + "\n";
+			}
+		}
+
+		SVSRepositoryImpl<String> repository = new SVSRepositoryImpl<String>();
+		repository.setStoragePolicy(new SVSKeyframePolicy());
+		LinkedList<String> revs = new LinkedList<String>();
+		LinkedList<String> texts = new LinkedList<String>();
+		for (int i = 0; i < 40; i++) {
+			String text = configurations[i % 3] + "step: " + i + "\n";
+			texts.add(text);
+			revs.add(repository.makeSnapshot(text));
+		}
+		int size = repository.getSize();
+
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			Future<Integer> repacked = repository.repack(executor, 8, 10);
+			for (int i = 40; i < 50; i++) {
+				String text = configurations[i % 3] + "step: " + i + "\n";
+				texts.add(text);
+				revs.add(repository.makeSnapshot(text));
+				assertEquals(text, repository.getLatestSnapshot());
+			}
+			int repackedSize = repacked.get().intValue();
+			assertEquals(repackedSize, repository.getSize());
+			assertSizeRecounted(repository.getRepository());
+		} finally {
+			executor.shutdown();
+		}
+
+		assertTrue(repository.getSize() < size);
+		for (int i = 0; i < revs.size(); i++) {
+			assertEquals(texts.get(i), repository.restoreSnapShot(revs.get(i)));
+		}
+
+		// storage policy decides keyframes of repacked history too
+		repository.setStoragePolicy(new SVSKeyframePolicy(2, 0));
+		executor = Executors.newSingleThreadExecutor();
+		try {
+			repository.repack(executor, 8, 0).get();
+		} finally {
+			executor.shutdown();
+		}
+		for (String rev : repository.getHistory()) {
+			int depth = 0;
+			SVSSnapshot<String> snapshot = repository.getRepository().get(rev);
+			while (snapshot instanceof SVSDeltaSnapshot<?>) {
+				depth++;
+				snapshot = repository.getRepository().get(
+						((SVSDeltaSnapshot<String>) snapshot).getFutureRev());
+			}
+			assertTrue(depth <= 2);
+		}
+		for (int i = 0; i < revs.size(); i++) {
+			assertEquals(texts.get(i), repository.restoreSnapShot(revs.get(i)));
+		}
+	}
+
+	public void testAsyncSnapshot() {
+		SVSRepositoryImpl<Person> repository = new SVSRepositoryImpl<Person>();
+		Person p = new Person();
+		p.setName("Bob");
+		p.setAdress("9 rue du gymnase\n89245 Bidonville");
+
+		LinkedList<String> revs = new LinkedList<String>();
+		for (int i = 0; i < 40; i++) {
+			p.setAge(i);
+			revs.add(repository.makeSnapshotAsync(p));
+			// pending or committed, restore is consistent
+			assertEquals(i, repository.restoreSnapShot(revs.getLast()).getAge());
+		}
+		repository.flush();
+
+		assertEquals(39, repository.getLatestSnapshot().getAge());
+		for (int i = 0; i < revs.size(); i++) {
+			assertEquals(i, repository.restoreSnapShot(revs.get(i)).getAge());
+		}
+
+		// synchronous snapshot keeps order with pending ones
+		p.setAge(40);
+		revs.add(repository.makeSnapshotAsync(p));
+		p.setAge(41);
+		repository.makeSnapshot(p);
+		assertEquals(41, repository.getLatestSnapshot().getAge());
+		assertEquals(40, repository.restoreSnapShot(revs.getLast()).getAge());
+	}
+
+	public void testAsyncConcurrentReads() throws Exception {
+		final SVSRepositoryImpl<Person> repository = new SVSRepositoryImpl<Person>();
+		final Person p = new Person();
+		p.setName("Bob");
+		p.setAdress("9 rue du gymnase\n89245 Bidonville");
+		p.setAge(0);
+		final String first = repository.makeSnapshot(p);
+
+		final List<Throwable> failures = new Vector<Throwable>();
+		final AtomicBoolean done = new AtomicBoolean();
+		Thread reader = new Thread() {
+			@Override
+			public void run() {
+				try {
+					while (!done.get()) {
+						for (String rev : repository.getHistory()) {
+							repository.restoreSnapShot(rev);
+						}
+						assertEquals(0, repository.restoreSnapShot(first)
+								.getAge());
+						repository.getLatestSnapshot();
+						repository.getSize();
+					}
+				} catch (Throwable t) {
+					failures.add(t);
+				}
+			}
+		};
+		reader.start();
+
+		for (int i = 1; i < 60; i++) {
+			p.setAge(i);
+			String rev = repository.makeSnapshotAsync(p);
+			// pending revisions are the latest ones
+			assertEquals(rev, repository.getLatestRevNumber());
+			assertEquals(i, repository.getLatestSnapshot().getAge());
+			assertEquals(i + 1, repository.getHistory().size());
+		}
+		done.set(true);
+		reader.join();
+
+		assertTrue(failures.toString(), failures.isEmpty());
+		assertEquals(59, repository.getLatestSnapshot().getAge());
+	}
+
+	public void testMakeSnapshots() {
+		SVSRepositoryImpl<String> repository = new SVSRepositoryImpl<String>();
+		String first = repository.makeSnapshot("version: -1\n");
+
+		LinkedList<String> texts = new LinkedList<String>();
+		for (int i = 0; i < 30; i++) {
+			// includes a repeated version
+			texts.add("name: Bob\nversion: " + (i / 2 * 2) + "\n");
+		}
+		List<String> revs = repository.makeSnapshots(texts);
+
+		assertEquals(texts.size(), revs.size());
+		assertEquals(texts.size() + 1, repository.getHistory().size());
+		assertEquals(texts.getLast(), repository.getLatestSnapshot());
+		assertEquals("version: -1\n", repository.restoreSnapShot(first));
+		for (int i = 0; i < revs.size(); i++) {
+			assertEquals(texts.get(i), repository.restoreSnapShot(revs.get(i)));
+		}
+	}
+
+	public void testComposePatches() {
+		String text0 = "name: Bob\nage: 17\ntel: 1545645646\n";
+		String text1 = "name: Bob Jos\nage: 18\ntel: 1545645646\n";
+		String text2 = "name: Jos\nage: 18\ntel: 33355566\n+33\n";
+
+		SVSPatcher<String> patcher = new SVSPatcher<String>();
+		SVSPatch<String> first = patcher.makeDeltaForStrings(text0, text1);
+		SVSPatch<String> second = patcher.makeDeltaForStrings(text1, text2);
+		SVSPatch<String> composed = patcher.composePatches(Arrays.asList(
+				first, second));
+		assertEquals(text2, patcher.patchString(text0, composed));
+		assertEquals(text0, patcher.patchString(text2, patcher.invertPatch(
+				text0, composed)));
+
+		// revisions on both sides of their common base
+		SVSRepositoryImpl<String> repository = new SVSRepositoryImpl<String>();
+		repository.setSkipDeltas(true);
+		LinkedList<String> revs = new LinkedList<String>();
+		LinkedList<String> texts = new LinkedList<String>();
+		for (int i = 0; i < 20; i++) {
+			String text = "name: Bob\nversion: " + i + "\nstep: " + (i % 3)
+					+ "\n";
+			texts.add(text);
+			revs.add(repository.makeSnapshot(text));
+		}
+		for (int i = 0; i < revs.size(); i += 3) {
+			for (int j = 0; j < revs.size(); j += 4) {
+				SVSPatch<String> patch = repository.getSVSPatchBeetween(revs
+						.get(i), revs.get(j));
+				assertEquals(texts.get(j), patcher.patchWith(texts.get(i),
+						patch));
+			}
+		}
+	}
+
+	public void testBisect() {
+		Random random = new Random(7);
+		SVSExactDeltaEngine engine = new SVSExactDeltaEngine();
+		for (int n = 0; n < 50; n++) {
+			// no line mode: texts without newline
+			StringBuilder text1 = new StringBuilder();
+			for (int i = 0; i < 300; i++) {
+				text1.append((char) ('a' + random.nextInt(4)));
+			}
+			StringBuilder text2 = new StringBuilder(text1);
+			for (int i = 0; i < 20; i++) {
+				int pos = random.nextInt(text2.length());
+				if (random.nextBoolean()) {
+					text2.deleteCharAt(pos);
+				} else {
+					text2.insert(pos, (char) ('a' + random.nextInt(6)));
+				}
+			}
+
+			String delta = engine.diff(text1.toString(), text2.toString());
+			assertEquals(text2.toString(), engine.patch(text1.toString(),
+					delta));
+		}
+	}
+
+	public void testParallelDiff() {
+		Random random = new Random(11);
+		StringBuilder text1 = new StringBuilder();
+		for (int i = 0; i < 4000; i++) {
+			text1.append("line ").append(random.nextInt(50)).append('\n');
+		}
+		StringBuilder text2 = new StringBuilder(text1);
+		for (int i = 0; i < 200; i++) {
+			int pos = random.nextInt(text2.length());
+			text2.replace(pos, pos + 1, String.valueOf(random.nextInt(10)));
+		}
+
+		DiffMatchPatch sequential = new DiffMatchPatch();
+		// no deadline, results would depend on speed
+		sequential.Diff_Timeout = 0;
+		DiffMatchPatch parallel = new DiffMatchPatch();
+		parallel.Diff_Timeout = 0;
+		parallel.Diff_ParallelThreshold = 256;
+
+		assertEquals(sequential.dFMDiff_main(text1.toString(), text2
+				.toString(), false), parallel.dFMDiff_main(text1.toString(),
+				text2.toString(), false));
+		assertEquals(sequential.dFMDiff_main(text1.toString(), text2
+				.toString()), parallel.dFMDiff_main(text1.toString(), text2
+				.toString()));
+	}
+
+	public void testPatienceDiff() {
+		Random random = new Random(5);
+		SVSPatienceDeltaEngine engine = new SVSPatienceDeltaEngine();
+		for (int n = 0; n < 20; n++) {
+			LinkedList<String> blocks = new LinkedList<String>();
+			for (int i = 0; i < 400; i++) {
+				blocks.add("item" + i + ":\n  name: n" + random.nextInt(5)
+						+ "\n  value: " + random.nextInt(3) + "\n");
+			}
+			String text1 = blocks.toString();
+			// move, change and remove blocks
+			for (int i = 0; i < 10; i++) {
+				blocks.add(random.nextInt(blocks.size()), blocks
+						.remove(random.nextInt(blocks.size())));
+				int changed = random.nextInt(blocks.size());
+				blocks.set(changed, blocks.get(changed).replace("value",
+						"values"));
+			}
+			blocks.remove(random.nextInt(blocks.size()));
+			String text2 = blocks.toString();
+
+			assertEquals(text2, engine.patch(text1, engine.diff(text1, text2)));
+			assertEquals(text1, engine.patch(text2, engine.diff(text2, text1)));
+		}
+
+		// selected per repository, deltas can be composed
+		SVSRepositoryImpl<String> repository = new SVSRepositoryImpl<String>(
+				new SVSYamlCodec(), engine);
+		String rev1 = repository.makeSnapshot("a\nb\nc\nd\n");
+		repository.makeSnapshot("a\nc\nb\nd\n");
+		String rev3 = repository.makeSnapshot("a\nc\nb\nd\ne\n");
+		assertEquals("a\nb\nc\nd\n", repository.restoreSnapShot(rev1));
+		assertEquals("a\nc\nb\nd\ne\n", new SVSPatcher<String>().patchWith(
+				"a\nb\nc\nd\n", repository.getSVSPatchBeetween(rev1, rev3)));
+	}
+
+	public void testDiffBudget() {
+		Random random = new Random(3);
+		StringBuilder text1 = new StringBuilder();
+		for (int i = 0; i < 200; i++) {
+			text1.append("key").append(i).append(": ").append(
+					random.nextInt(1000)).append('\n');
+		}
+		StringBuilder text2 = new StringBuilder(text1);
+		for (int i = 0; i < 100; i++) {
+			int pos = random.nextInt(text2.length());
+			text2.setCharAt(pos, (char) ('a' + random.nextInt(26)));
+		}
+
+		// line fallback: bigger but reproducible delta
+		SVSExactDeltaEngine lines = new SVSExactDeltaEngine(200,
+				SVSBudgetPolicy.LINES);
+		String delta = lines.diff(text1.toString(), text2.toString());
+		assertEquals(delta, lines.diff(text1.toString(), text2.toString()));
+		assertEquals(text2.toString(), lines.patch(text1.toString(), delta));
+
+		// delete/insert fallback: stops at once
+		SVSExactDeltaEngine deleteInsert = new SVSExactDeltaEngine(200,
+				SVSBudgetPolicy.DELETE_INSERT);
+		delta = deleteInsert.diff(text1.toString(), text2.toString());
+		assertEquals(text2.toString(), deleteInsert.patch(text1.toString(),
+				delta));
+
+		// budget bounds all searches of a diff, not each one
+		CountingDiffMatchPatch dmp = new CountingDiffMatchPatch();
+		dmp.Diff_MaxSteps = Long.MAX_VALUE;
+		long unlimited = dmp.countSteps(text1.toString(), text2.toString());
+		dmp.Diff_MaxSteps = 2000;
+		dmp.Diff_BudgetFallback = DiffMatchPatch.BudgetFallback.DELETE_INSERT;
+		long limited = dmp.countSteps(text1.toString(), text2.toString());
+		assertTrue(unlimited > 10 * dmp.Diff_MaxSteps);
+		// last search may end its current d loop
+		assertTrue(limited <= dmp.Diff_MaxSteps + 2 * text1.length());
+
+		// budgeted diff ignores parallel threshold, result is reproducible
+		dmp.Diff_ParallelThreshold = 1;
+		long parallel = dmp.countSteps(text1.toString(), text2.toString());
+		assertEquals(limited, parallel);
+
+		// patience gaps share the budget of the whole diff
+		Random lineRandom = new Random(5);
+		StringBuilder lines1 = new StringBuilder();
+		StringBuilder lines2 = new StringBuilder();
+		String gap1 = null;
+		String gap2 = null;
+		for (int i = 0; i < 100; i++) {
+			StringBuilder line = new StringBuilder();
+			for (int j = 0; j < 30; j++) {
+				line.append((char) ('a' + lineRandom.nextInt(4)));
+			}
+			StringBuilder changed = new StringBuilder(line);
+			for (int j = 0; j < 4; j++) {
+				changed.setCharAt(lineRandom.nextInt(30),
+						(char) ('a' + lineRandom.nextInt(4)));
+			}
+			lines1.append("unique ").append(i).append('\n').append(line)
+					.append('\n');
+			lines2.append("unique ").append(i).append('\n').append(changed)
+					.append('\n');
+			if (gap1 == null) {
+				gap1 = "first\n" + line + "\nlast\n";
+				gap2 = "first\n" + changed + "\nlast\n";
+			}
+		}
+		// one gap is far below budget, the 100 gaps are not
+		new SVSPatienceDeltaEngine(50, SVSBudgetPolicy.COMPLETE).diff(gap1,
+				gap2);
+		SVSPatienceDeltaEngine patience = new SVSPatienceDeltaEngine(1000,
+				SVSBudgetPolicy.COMPLETE);
+		try {
+			patience.diff(lines1.toString(), lines2.toString());
+			fail("budget exceeded");
+		} catch (SVSDiffBudgetException e) {
+			// expected
+		}
+
+		// complete fallback: no delta
+		SVSExactDeltaEngine complete = new SVSExactDeltaEngine(200,
+				SVSBudgetPolicy.COMPLETE);
+		try {
+			complete.diff(text1.toString(), text2.toString());
+			fail("budget exceeded");
+		} catch (SVSDiffBudgetException e) {
+			// expected
+		}
+		SVSRepositoryImpl<String> repository = new SVSRepositoryImpl<String>(
+				new SVSYamlCodec(), complete);
+		String rev1 = repository.makeSnapshot(text1.toString());
+		repository.makeSnapshot(text2.toString());
+		assertFalse(repository.getRepository().get(rev1) instanceof SVSDeltaSnapshot<?>);
+		assertEquals(text1.toString(), repository.restoreSnapShot(rev1));
+	}
+
+	/**
+	 * counts steps of a whole bisect diff
+	 */
+	private static class CountingDiffMatchPatch extends DiffMatchPatch {
+		long countSteps(String text1, String text2) {
+			AtomicLong steps = new AtomicLong();
+			dFMDiff_bisect(text1, text2, Long.MAX_VALUE, steps);
+			return steps.get();
+		}
+	}
+
+	public void testLongPatternMatch() {
+		Random random = new Random(9);
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < 2000; i++) {
+			text.append((char) ('a' + random.nextInt(4)));
+		}
+
+		DiffMatchPatch dmp = new DiffMatchPatch();
+		dmp.Match_MaxBits = 200;
+		// 150 chars pattern with 3 errors, located in one pass
+		StringBuilder pattern = new StringBuilder(text.substring(700, 850));
+		pattern.setCharAt(10, 'x');
+		pattern.setCharAt(70, 'y');
+		pattern.setCharAt(140, 'z');
+		assertEquals(700, dmp.match_main(text.toString(), pattern.toString(),
+				690));
+
+		// long replaced lines are patched without being split
+		SVSPatcher<String> patcher = new SVSPatcher<String>();
+		String text1 = "first: a long line with a value of 1000 and some text\n"
+				+ "second: another long line with a value of 2000 and text\n"
+				+ "third: yet another line with a value of 3000 and text\n";
+		String text2 = text1.replace("value of 2000 and text",
+				"brand new value of 2500 replacing the whole line end");
+		SVSPatch<String> patch = patcher.makeSVSPatchForStrings(text1, text2);
+		String target = text1.replace("first", "1st");
+		assertEquals(text2.replace("first", "1st"), patcher.patchString(target,
+				patch));
 	}
 
-}
\ No newline at end of file
+}